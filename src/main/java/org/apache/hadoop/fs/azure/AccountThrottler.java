@@ -0,0 +1,392 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.util.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RequestResult;
+import com.microsoft.azure.storage.ResponseReceivedEvent;
+import com.microsoft.azure.storage.SendingRequestEvent;
+import com.microsoft.azure.storage.StorageEvent;
+
+/**
+ * Throttles the requests of all the file systems of the JVM to each storage
+ * account, with separate budgets for reads and writes, so that a job using
+ * several accounts only slows down the requests to the account that pushes
+ * back.
+ *
+ * A budget does not limit anything until the account answers a request with
+ * 503 or 500. It then becomes a rate of requests, 70% of the rate the
+ * requests were sent at, that requests wait for before they are sent. While
+ * the account answers normally the rate grows by a twentieth of the rate it
+ * was lowered from every second, unless the latency of the requests rose to
+ * several times its usual value, which is a sign of an account near its
+ * limits. Once the rate is twice what the requests need, the budget stops
+ * limiting them again.
+ *
+ * The budgets live in the JVM, unless a shared file is configured: then the
+ * JVMs of a node that use the same file share them, see
+ * {@link SharedThrottlingFile}.
+ */
+@InterfaceAudience.Private
+final class AccountThrottler {
+    private static final Logger LOG = LoggerFactory.getLogger(AccountThrottler.class);
+
+    // The throttlers of the JVM, one per account host.
+    private static final Map<String, AccountThrottler> THROTTLERS = new ConcurrentHashMap<>();
+    // The file of the budgets shared with other JVMs, or null.
+    private static SharedThrottlingFile sharedFile;
+    private static boolean sharedFileConfigured;
+
+    private final String account;
+    private final Budget readBudget;
+    private final Budget writeBudget;
+
+    private AccountThrottler(String account) {
+        this.account = account;
+        this.readBudget = newBudget(account, "reads");
+        this.writeBudget = newBudget(account, "writes");
+    }
+
+    private static Budget newBudget(String account, String kind) {
+        SharedThrottlingFile file = getSharedFile();
+        if (file != null) {
+            Budget budget = file.getBudget(account, kind);
+            if (budget != null) {
+                return budget;
+            }
+            LOG.warn("No room left in {} for the {} of {}, throttling them in this JVM",
+                    file, kind, account);
+        }
+        return new LocalBudget(account + " " + kind);
+    }
+
+    /**
+     * Shares the budgets with the other JVMs that use the given file, unless
+     * the throttlers were configured already. If the file cannot be used the
+     * budgets stay in the JVM.
+     *
+     * @param path the path of the shared file, or null to keep the budgets
+     *          in the JVM.
+     */
+    static synchronized void configureSharedFile(String path) {
+        if (sharedFileConfigured) {
+            return;
+        }
+        sharedFileConfigured = true;
+        if (path == null) {
+            return;
+        }
+        try {
+            sharedFile = SharedThrottlingFile.open(path);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to share the throttling of the accounts through {}",
+                    path, e);
+        }
+    }
+
+    private static synchronized SharedThrottlingFile getSharedFile() {
+        return sharedFile;
+    }
+
+    /**
+     * Returns the throttler of the given account host.
+     */
+    static AccountThrottler forAccount(String account) {
+        return THROTTLERS.computeIfAbsent(account, AccountThrottler::new);
+    }
+
+    /**
+     * @return the throttlers of the JVM.
+     */
+    static Collection<AccountThrottler> getThrottlers() {
+        return Collections.unmodifiableCollection(THROTTLERS.values());
+    }
+
+    /**
+     * Throttles the requests of the given operation context on the
+     * throttlers of their accounts.
+     */
+    static void hook(OperationContext operationContext) {
+        operationContext.getSendingRequestEventHandler().addListener(
+                new StorageEvent<SendingRequestEvent>() {
+                    @Override
+                    public void eventOccurred(SendingRequestEvent eventArg) {
+                        Object connectionObject = eventArg.getConnectionObject();
+                        if (connectionObject instanceof HttpURLConnection) {
+                            budget((HttpURLConnection) connectionObject).acquire();
+                        }
+                    }
+                });
+        operationContext.getResponseReceivedEventHandler().addListener(
+                new StorageEvent<ResponseReceivedEvent>() {
+                    @Override
+                    public void eventOccurred(ResponseReceivedEvent eventArg) {
+                        Object connectionObject = eventArg.getConnectionObject();
+                        if (connectionObject instanceof HttpURLConnection) {
+                            budget((HttpURLConnection) connectionObject)
+                                    .responseReceived(eventArg.getRequestResult());
+                        }
+                    }
+                });
+    }
+
+    private static Budget budget(HttpURLConnection connection) {
+        AccountThrottler throttler = forAccount(connection.getURL().getHost());
+        String method = connection.getRequestMethod();
+        return "GET".equals(method) || "HEAD".equals(method)
+                ? throttler.readBudget : throttler.writeBudget;
+    }
+
+    /**
+     * @return the account host of this throttler.
+     */
+    String getAccount() {
+        return account;
+    }
+
+    Budget getReadBudget() {
+        return readBudget;
+    }
+
+    Budget getWriteBudget() {
+        return writeBudget;
+    }
+
+    /**
+     * An adaptive rate of requests.
+     */
+    abstract static class Budget {
+        // The rate a budget is lowered to, relative to the rate of the
+        // requests.
+        static final double DECREASE_FACTOR = 0.7;
+        // The part of the rate before the last decrease added every second.
+        static final double INCREASE_STEP = 0.05;
+        // The latency, relative to the usual latency, above which the rate
+        // does not grow.
+        static final double LATENCY_FACTOR = 3;
+        // A budget at least this many times the rate of the requests stops
+        // limiting them.
+        static final double UNLIMITED_HEADROOM = 2;
+        static final double MIN_RATE = 1;
+        static final long SECOND_MS = 1000;
+        // The weight of the latest request in the average latency, and of
+        // the average latency in the usual latency.
+        static final double LATENCY_WEIGHT = 0.1;
+        static final double BASELINE_WEIGHT = 0.01;
+
+        /**
+         * Waits until the budget allows one more request.
+         */
+        final void acquire() {
+            long wait = reserve();
+            if (wait <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                // The request is sent now; the SDK sees the interrupt.
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Takes a token and returns how long to wait for it, in milliseconds.
+         */
+        abstract long reserve();
+
+        abstract void responseReceived(RequestResult result);
+
+        /**
+         * @return the requests per second allowed, or infinity if the budget
+         *         does not limit them.
+         */
+        abstract double getRate();
+
+        /**
+         * @return the number of times the rate was lowered.
+         */
+        abstract long getDecreaseCount();
+
+        /**
+         * @return the time requests of this JVM were delayed, in
+         *         milliseconds.
+         */
+        abstract long getDelayMillis();
+
+        static boolean isThrottled(RequestResult result) {
+            int status = result.getStatusCode();
+            return status == HttpURLConnection.HTTP_UNAVAILABLE
+                    || status == HttpURLConnection.HTTP_INTERNAL_ERROR;
+        }
+
+        /**
+         * @return the latency of a request in milliseconds, or -1 if it is
+         *         not known.
+         */
+        static long latencyMillis(RequestResult result) {
+            if (result.getStartDate() == null || result.getStopDate() == null) {
+                return -1;
+            }
+            return result.getStopDate().getTime() - result.getStartDate().getTime();
+        }
+
+        static double average(double average, double value, double weight) {
+            return average == 0 ? value : (1 - weight) * average + weight * value;
+        }
+    }
+
+    /**
+     * A budget of the requests of this JVM.
+     */
+    static final class LocalBudget extends Budget {
+        private final String name;
+
+        // Requests per second, or infinity if the budget does not limit.
+        private double rate = Double.POSITIVE_INFINITY;
+        // The rate before the last decrease.
+        private double recoveryRate;
+        // Tokens available; negative when requests reserved future tokens.
+        private double tokens;
+        private long lastRefill = Time.monotonicNow();
+
+        private long windowStart = Time.monotonicNow();
+        private int windowRequests;
+        private boolean windowThrottled;
+        private double requestRate;
+        private long lastDecrease;
+        private double latencyMs;
+        private double usualLatencyMs;
+
+        private long decreaseCount;
+        private long delayMs;
+
+        LocalBudget(String name) {
+            this.name = name;
+        }
+
+        @Override
+        synchronized long reserve() {
+            long now = Time.monotonicNow();
+            roll(now);
+            windowRequests++;
+            if (Double.isInfinite(rate)) {
+                return 0;
+            }
+            tokens = Math.min(1, tokens + (now - lastRefill) * rate / SECOND_MS);
+            lastRefill = now;
+            tokens -= 1;
+            if (tokens >= 0) {
+                return 0;
+            }
+            long wait = (long) Math.ceil(-tokens * SECOND_MS / rate);
+            delayMs += wait;
+            return wait;
+        }
+
+        @Override
+        synchronized void responseReceived(RequestResult result) {
+            long now = Time.monotonicNow();
+            roll(now);
+            if (isThrottled(result)) {
+                throttled(now);
+                return;
+            }
+            long latency = latencyMillis(result);
+            if (latency >= 0) {
+                latencyMs = average(latencyMs, latency, LATENCY_WEIGHT);
+                usualLatencyMs = Math.min(latencyMs,
+                        average(usualLatencyMs, latencyMs, BASELINE_WEIGHT));
+            }
+        }
+
+        /**
+         * Lowers the rate, at most once per second or per request latency;
+         * the requests in flight when the rate is lowered are throttled too.
+         */
+        private void throttled(long now) {
+            windowThrottled = true;
+            if (decreaseCount > 0 && now - lastDecrease < Math.max(SECOND_MS, latencyMs)) {
+                return;
+            }
+            double current = Double.isInfinite(rate)
+                    ? Math.max(requestRate, currentRequestRate(now)) : rate;
+            recoveryRate = current;
+            rate = Math.max(MIN_RATE, current * DECREASE_FACTOR);
+            tokens = Math.min(tokens, 0);
+            lastRefill = now;
+            lastDecrease = now;
+            decreaseCount++;
+            LOG.debug("Throttling {} to {} requests per second", name, (long) rate);
+        }
+
+        private double currentRequestRate(long now) {
+            return windowRequests * (double) SECOND_MS / Math.max(1, now - windowStart);
+        }
+
+        /**
+         * Ends the window of one second of requests, if it is over, and
+         * adapts the rate to it.
+         */
+        private void roll(long now) {
+            if (now - windowStart < SECOND_MS) {
+                return;
+            }
+            requestRate = currentRequestRate(now);
+            if (!Double.isInfinite(rate) && !windowThrottled
+                    && (usualLatencyMs == 0 || latencyMs <= LATENCY_FACTOR * usualLatencyMs)) {
+                rate += Math.max(MIN_RATE, recoveryRate * INCREASE_STEP);
+                if (rate >= UNLIMITED_HEADROOM * requestRate) {
+                    LOG.debug("Stopped throttling {}", name);
+                    rate = Double.POSITIVE_INFINITY;
+                }
+            }
+            windowStart = now;
+            windowRequests = 0;
+            windowThrottled = false;
+        }
+
+        @Override
+        synchronized double getRate() {
+            return rate;
+        }
+
+        @Override
+        synchronized long getDecreaseCount() {
+            return decreaseCount;
+        }
+
+        @Override
+        synchronized long getDelayMillis() {
+            return delayMs;
+        }
+    }
+}
@@ -19,29 +19,55 @@
 package org.apache.hadoop.fs.azure;
 import static org.apache.hadoop.fs.azure.NativeAzureFileSystem.PATH_DELIMITER;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
 
 import com.microsoft.azure.storage.*;
 import org.apache.commons.lang3.StringUtils;
@@ -64,6 +90,7 @@ import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.fs.permission.PermissionStatus;
 import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.Time;
 import org.apache.hadoop.util.VersionInfo;
 import org.eclipse.jetty.util.ajax.JSON;
 import org.slf4j.Logger;
@@ -71,14 +98,21 @@ import org.slf4j.LoggerFactory;
 
 import org.apache.hadoop.thirdparty.com.google.common.annotations.VisibleForTesting;
 import com.microsoft.azure.storage.core.BaseRequest;
+import com.microsoft.azure.storage.blob.BlobDeleteBatchOperation;
 import com.microsoft.azure.storage.blob.BlobListingDetails;
 import com.microsoft.azure.storage.blob.BlobProperties;
 import com.microsoft.azure.storage.blob.BlobRequestOptions;
 import com.microsoft.azure.storage.blob.BlobType;
+import com.microsoft.azure.storage.blob.BlockEntry;
 import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.CloudPageBlob;
+import com.microsoft.azure.storage.blob.CopyState;
 import com.microsoft.azure.storage.blob.CopyStatus;
 import com.microsoft.azure.storage.blob.DeleteSnapshotsOption;
 import com.microsoft.azure.storage.blob.ListBlobItem;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPermissions;
+import com.microsoft.azure.storage.blob.SharedAccessBlobPolicy;
 import com.microsoft.azure.storage.core.Utility;
 
 /**
@@ -235,6 +269,270 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
      */
     public static final String KEY_ENABLE_FLAT_LISTING = "fs.azure.flatlist.enable";
 
+    /**
+     * Configuration key for the number of threads used to list sub-directories
+     * concurrently during a recursive (hierarchical) listing. When flat listing
+     * is enabled, the same threads list the first-level blob prefixes as
+     * separate shards of the key space. A value of 1 or less keeps the
+     * single-threaded listing.
+     */
+    public static final String KEY_LIST_THREADS = "fs.azure.list.threads";
+
+    /**
+     * Configuration key for the number of threads used to resolve the data
+     * size of listed page blobs, which takes a request per page blob. A value of
+     * 0 resolves the sizes one by one while listing.
+     */
+    public static final String KEY_PAGE_BLOB_SIZE_THREADS = "fs.azure.page.blob.size.threads";
+
+    /**
+     * Configuration key for the number of threads that purge uses to delete
+     * the blobs under a prefix while the prefix is still being listed. A value
+     * of 1 or less deletes the blobs one by one.
+     */
+    public static final String KEY_PURGE_THREADS = "fs.azure.purge.threads";
+
+    /**
+     * Configuration key to let purge delete blobs with Blob Batch requests of
+     * up to 256 deletes each. Purge falls back to single deletes if the
+     * service or the credentials do not allow batch requests.
+     */
+    public static final String KEY_PURGE_BATCH_ENABLE = "fs.azure.purge.batch.enable";
+
+    /**
+     * Configuration key for the number of threads used by a bulk delete, see
+     * {@link #delete(Iterable, BulkDeleteListener)}. A value of 1 or less
+     * deletes the blobs one by one in the calling thread.
+     */
+    public static final String KEY_BULK_DELETE_THREADS = "fs.azure.bulk.delete.threads";
+
+    /**
+     * Configuration key for the number of threads used by a bulk rename, see
+     * {@link #rename(Map, BulkRenameListener)}, to start copies and delete
+     * sources. A value of 1 or less renames the blobs one by one in the
+     * calling thread.
+     */
+    public static final String KEY_BULK_RENAME_THREADS = "fs.azure.bulk.rename.threads";
+
+    /**
+     * Configuration key to read block blobs with a stream that reads ahead
+     * while the blob is read sequentially.
+     */
+    public static final String KEY_READ_AHEAD_ENABLE = "fs.azure.read.ahead.enable";
+
+    /**
+     * Configuration key for the number of blocks of
+     * {@code fs.azure.read.request.size} bytes that a stream reads ahead at
+     * most.
+     */
+    public static final String KEY_READ_AHEAD_BLOCKS = "fs.azure.read.ahead.blocks";
+
+    /**
+     * Configuration key for the number of threads that read ahead for all the
+     * streams of the JVM. The first file system that enables read-ahead sets
+     * it.
+     */
+    public static final String KEY_READ_AHEAD_THREADS = "fs.azure.read.ahead.threads";
+
+    /**
+     * Configuration key for the memory, in bytes, of the blocks read ahead by
+     * all the streams of the JVM. The first file system that enables
+     * read-ahead sets it.
+     */
+    public static final String KEY_READ_AHEAD_MEMORY_LIMIT =
+            "fs.azure.read.ahead.memory.limit";
+
+    /**
+     * Configuration key for the largest gap, in bytes, between two ranges of
+     * a vectored read that are fetched with one request.
+     */
+    public static final String KEY_VECTORED_READ_MIN_SEEK_SIZE =
+            "fs.azure.vectored.read.min.seek.size";
+
+    /**
+     * Configuration key for the largest size, in bytes, of the ranges of a
+     * vectored read fetched with one request.
+     */
+    public static final String KEY_VECTORED_READ_MAX_MERGED_SIZE =
+            "fs.azure.vectored.read.max.merged.size";
+
+    /**
+     * Configuration key for the number of threads fetching the ranges of
+     * vectored reads. With one thread or less, ranges are fetched by the
+     * caller.
+     */
+    public static final String KEY_VECTORED_READ_THREADS =
+            "fs.azure.vectored.read.threads";
+
+    /**
+     * Configuration key to keep the last bytes of recently read block blobs
+     * in memory, so that footers read again by later streams are not
+     * downloaded again. Block blobs are then read with the read-ahead stream,
+     * which only reads ahead if {@code fs.azure.read.ahead.enable} is set.
+     */
+    public static final String KEY_TAIL_CACHE_ENABLE = "fs.azure.tail.cache.enable";
+
+    /**
+     * Configuration key for the number of bytes kept from the end of each
+     * blob in the tail cache.
+     */
+    public static final String KEY_TAIL_CACHE_TAIL_SIZE = "fs.azure.tail.cache.tail.size";
+
+    /**
+     * Configuration key for the number of blobs whose tail is cached at most.
+     */
+    public static final String KEY_TAIL_CACHE_MAX_ENTRIES =
+            "fs.azure.tail.cache.max.entries";
+
+    /**
+     * Configuration key for the memory, in bytes, of all the cached tails.
+     */
+    public static final String KEY_TAIL_CACHE_MEMORY_LIMIT =
+            "fs.azure.tail.cache.memory.limit";
+
+    /**
+     * Configuration key for a local directory, ideally on an SSD, in which
+     * blocks of {@code fs.azure.read.request.size} bytes of block blobs are
+     * cached. Several JVMs can share the directory. Block blobs are then read
+     * with the read-ahead stream, which only reads ahead if
+     * {@code fs.azure.read.ahead.enable} is set. Not set by default, which
+     * disables the cache.
+     */
+    public static final String KEY_BLOCK_CACHE_DIR = "fs.azure.block.cache.dir";
+
+    /**
+     * Configuration key for the size, in bytes, of the blocks in the block
+     * cache directory at most. The first file system of the JVM that uses
+     * the directory sets it.
+     */
+    public static final String KEY_BLOCK_CACHE_MAX_SIZE = "fs.azure.block.cache.max.size";
+
+    /**
+     * Configuration key for the buffers of block blob uploads:
+     * {@value #UPLOAD_BUFFER_SDK} for the output stream of the storage SDK,
+     * which allocates a buffer per block, {@value #UPLOAD_BUFFER_ARRAY} for
+     * heap buffers of a pool shared by the JVM,
+     * {@value #UPLOAD_BUFFER_BYTEBUFFER} for direct buffers of a pool, or
+     * {@value #UPLOAD_BUFFER_DISK} for files in local directories, which
+     * bounds the memory of many streams writing at once.
+     */
+    public static final String KEY_UPLOAD_BUFFER = "fs.azure.upload.buffer";
+
+    /**
+     * Configuration key for the comma-separated local directories of the
+     * blocks buffered on disk. Defaults to {@code hadoop.tmp.dir}.
+     */
+    public static final String KEY_UPLOAD_BUFFER_DIR = "fs.azure.upload.buffer.dir";
+
+    /**
+     * Configuration key for the number of threads that upload the blocks of
+     * all the streams of the JVM, unless {@code fs.azure.upload.buffer} is
+     * {@value #UPLOAD_BUFFER_SDK}. The first file system that uploads sets
+     * it.
+     */
+    public static final String KEY_UPLOAD_THREADS = "fs.azure.upload.threads";
+
+    /**
+     * Configuration key to read the blocks of the read-ahead stream into
+     * heap buffers of a pool shared by the JVM.
+     */
+    public static final String KEY_READ_BUFFER_POOL_ENABLE =
+            "fs.azure.read.buffer.pool.enable";
+
+    /**
+     * Configuration key for the memory, in bytes, of the free buffers kept by
+     * each of the heap and direct buffer pools. The first file system that
+     * uses a pool sets it.
+     */
+    public static final String KEY_BUFFER_POOL_MEMORY_LIMIT =
+            "fs.azure.buffer.pool.memory.limit";
+
+    /**
+     * Configuration key to adapt the number of blocks uploaded at a time to
+     * the throughput and throttling of the account, starting from
+     * {@code fs.azure.concurrentRequestCount.out}. If disabled, that value
+     * stays the number of blocks each stream uploads at a time.
+     */
+    public static final String KEY_UPLOAD_CONCURRENCY_ADAPTIVE =
+            "fs.azure.upload.concurrency.adaptive";
+
+    /**
+     * Configuration key for the number of blocks a stream uploads at a time
+     * at most when the upload concurrency adapts.
+     */
+    public static final String KEY_UPLOAD_CONCURRENCY_MAX =
+            "fs.azure.upload.concurrency.max";
+
+    /**
+     * Configuration key to schedule the requests of all the file systems of
+     * the JVM to an account over a bounded number of connections, serving
+     * metadata requests before data transfers and the blobs round robin.
+     */
+    public static final String KEY_REQUEST_SCHEDULER_ENABLE =
+            "fs.azure.request.scheduler.enable";
+
+    /**
+     * Configuration key for the number of requests to an account in flight
+     * at a time when requests are scheduled. The first file system that uses
+     * an account sets it.
+     */
+    public static final String KEY_REQUEST_SCHEDULER_MAX_CONNECTIONS =
+            "fs.azure.request.scheduler.max.connections";
+
+    /**
+     * Configuration key to throttle the requests of all the file systems of
+     * the JVM with read and write budgets per account, which adapt to the
+     * throttling and latency of the account. It replaces self-throttling and
+     * client-side throttling.
+     */
+    public static final String KEY_ACCOUNT_THROTTLING_ENABLE =
+            "fs.azure.account.throttling.enable";
+
+    /**
+     * Configuration key for a local file, ideally in a memory file system
+     * such as /dev/shm, through which the JVMs of a node share the account
+     * throttling budgets, so that they converge on a sustainable rate
+     * together. Unset by default: each JVM has its own budgets. The first
+     * file system that throttles the accounts sets it.
+     */
+    public static final String KEY_ACCOUNT_THROTTLING_SHARED_FILE =
+            "fs.azure.account.throttling.shared.file";
+
+    public static final String UPLOAD_BUFFER_SDK = "sdk";
+    public static final String UPLOAD_BUFFER_ARRAY = "array";
+    public static final String UPLOAD_BUFFER_BYTEBUFFER = "bytebuffer";
+    public static final String UPLOAD_BUFFER_DISK = "disk";
+
+    /**
+     * Configuration key for the size, in bytes, up to which a block blob is
+     * renamed with a synchronous server-side copy, which completes in one
+     * request. The service allows up to 256MB. A value of 0 disables it.
+     */
+    public static final String KEY_RENAME_SYNC_COPY_THRESHOLD =
+            "fs.azure.rename.sync.copy.threshold";
+
+    /**
+     * Configuration key for the size, in bytes, up to which a block blob too
+     * large for a synchronous copy is renamed by staging its blocks from the
+     * source with Put Block From URL in parallel, and committing them. Larger
+     * blobs are renamed with an asynchronous copy. A value of 0 disables it.
+     */
+    public static final String KEY_RENAME_PUT_BLOCK_FROM_URL_THRESHOLD =
+            "fs.azure.rename.put.block.from.url.threshold";
+
+    /**
+     * Configuration key for the longest time, in milliseconds, that a rename
+     * waits for a server-side copy to complete before it fails.
+     */
+    public static final String KEY_COPYBLOB_WAIT_TIMEOUT = "fs.azure.copyblob.wait.timeout";
+
+    /**
+     * Configuration key for the longest interval, in milliseconds, between
+     * two polls of a pending server-side copy.
+     */
+    public static final String KEY_COPYBLOB_POLL_MAX_INTERVAL =
+            "fs.azure.copyblob.poll.max.interval";
+
     /**
      * Optional config to enable a lock free pread which will bypass buffer in
      * BlockBlobInputStream.
@@ -251,6 +549,11 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
      */
     private Set<String> atomicRenameDirs;
 
+    // The directory sets above, compiled once the session is initialized.
+    private DirectorySetMatcher pageBlobDirMatcher;
+    private DirectorySetMatcher blockBlobWithCompactionDirMatcher;
+    private DirectorySetMatcher atomicRenameDirMatcher;
+
     private static final String HTTP_SCHEME = "http";
     private static final String HTTPS_SCHEME = "https";
     private static final String WASB_AUTHORITY_DELIMITER = "@";
@@ -309,6 +612,87 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
      */
     public static final boolean DEFAULT_ENABLE_FLAT_LISTING = false;
 
+    /**
+     * Recursive listings are single-threaded by default.
+     */
+    public static final int DEFAULT_LIST_THREADS = 0;
+
+    /**
+     * Page blob sizes are resolved while listing by default.
+     */
+    public static final int DEFAULT_PAGE_BLOB_SIZE_THREADS = 0;
+
+    /**
+     * Purge deletes blobs one by one by default.
+     */
+    public static final int DEFAULT_PURGE_THREADS = 0;
+    public static final boolean DEFAULT_PURGE_BATCH_ENABLE = false;
+
+    /**
+     * Bulk deletes run in the calling thread by default.
+     */
+    public static final int DEFAULT_BULK_DELETE_THREADS = 0;
+
+    /**
+     * Bulk renames run in the calling thread by default.
+     */
+    public static final int DEFAULT_BULK_RENAME_THREADS = 0;
+
+    /**
+     * Read-ahead is off by default. When on, a stream reads up to 4 blocks
+     * ahead, on 16 threads and in 256MB of memory for the whole JVM.
+     */
+    public static final boolean DEFAULT_READ_AHEAD_ENABLE = false;
+    public static final int DEFAULT_READ_AHEAD_BLOCKS = 4;
+    public static final int DEFAULT_READ_AHEAD_THREADS = 16;
+    public static final long DEFAULT_READ_AHEAD_MEMORY_LIMIT = 256L * 1024 * 1024;
+    public static final int DEFAULT_VECTORED_READ_MIN_SEEK_SIZE = 64 * 1024;
+    public static final int DEFAULT_VECTORED_READ_MAX_MERGED_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_VECTORED_READ_THREADS = 8;
+    public static final boolean DEFAULT_TAIL_CACHE_ENABLE = false;
+    public static final int DEFAULT_TAIL_CACHE_TAIL_SIZE = 512 * 1024;
+    public static final int DEFAULT_TAIL_CACHE_MAX_ENTRIES = 256;
+    public static final long DEFAULT_TAIL_CACHE_MEMORY_LIMIT = 64L * 1024 * 1024;
+    public static final long DEFAULT_BLOCK_CACHE_MAX_SIZE = 10L * 1024 * 1024 * 1024;
+    public static final String DEFAULT_UPLOAD_BUFFER = UPLOAD_BUFFER_SDK;
+    public static final int DEFAULT_UPLOAD_THREADS =
+            BlockBlobUploadStream.DEFAULT_SHARED_POOL_THREADS;
+    public static final boolean DEFAULT_READ_BUFFER_POOL_ENABLE = false;
+    public static final long DEFAULT_BUFFER_POOL_MEMORY_LIMIT = 256L * 1024 * 1024;
+    public static final boolean DEFAULT_UPLOAD_CONCURRENCY_ADAPTIVE = true;
+    public static final int DEFAULT_UPLOAD_CONCURRENCY_MAX = 32;
+    public static final boolean DEFAULT_REQUEST_SCHEDULER_ENABLE = false;
+    public static final boolean DEFAULT_ACCOUNT_THROTTLING_ENABLE = false;
+    public static final int DEFAULT_REQUEST_SCHEDULER_MAX_CONNECTIONS = 128;
+
+    public static final long DEFAULT_RENAME_SYNC_COPY_THRESHOLD = 256L * 1024 * 1024;
+    public static final long DEFAULT_RENAME_PUT_BLOCK_FROM_URL_THRESHOLD = 0;
+    // The size of the blocks staged with Put Block From URL.
+    private static final long RENAME_BLOCK_SIZE = 100L * 1024 * 1024;
+    // The size of the ranges that a copy through the client reads and writes
+    // at a time; the largest allowed by Put Page.
+    private static final int CLIENT_COPY_RANGE_SIZE = 4 * 1024 * 1024;
+    // The maximum number of committed blocks of a block blob.
+    private static final int MAX_BLOCK_COUNT = 50000;
+    // How long the SAS that lets the service read a copy source is valid.
+    private static final long COPY_SOURCE_SAS_VALIDITY_MS = 60 * 60 * 1000;
+
+    /**
+     * A pending copy is polled first after 50ms, then at growing intervals of
+     * up to 5s, for at most an hour.
+     */
+    public static final long DEFAULT_COPYBLOB_WAIT_TIMEOUT = 60 * 60 * 1000;
+    public static final long DEFAULT_COPYBLOB_POLL_MAX_INTERVAL = 5 * 1000;
+    private static final long COPYBLOB_POLL_MIN_INTERVAL = 50;
+    // Polls of a pending copy that may fail in a row before the rename fails.
+    private static final int COPYBLOB_POLL_MAX_FAILURES = 5;
+
+    // The maximum number of sub-requests in a Blob Batch request.
+    private static final int BLOB_BATCH_MAX_SIZE = 256;
+
+    // The number of resolved page blob data sizes kept per store.
+    private static final int MAX_CACHED_PAGE_BLOB_SIZES = 4096;
+
     /**
      * MEMBER VARIABLES
      */
@@ -322,6 +706,11 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
     private AzureFileSystemInstrumentation instrumentation;
     private BandwidthGaugeUpdater bandwidthGaugeUpdater;
     private static final JSON PERMISSION_JSON_SERIALIZER = createPermissionJsonSerializer();
+    // Permission statuses interned by their metadata value. Blobs almost always
+    // share a handful of distinct values; the cache is bounded in case not.
+    private static final int MAX_CACHED_PERMISSION_STATUSES = 1024;
+    private static final Map<String, PermissionStatus> PERMISSION_STATUS_CACHE =
+            new ConcurrentHashMap<>();
 
     private boolean suppressRetryPolicy = false;
     private boolean canCreateOrModifyContainer = false;
@@ -334,6 +723,22 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
     private int downloadBlockSizeBytes = DEFAULT_DOWNLOAD_BLOCK_SIZE;
     private int uploadBlockSizeBytes = DEFAULT_UPLOAD_BLOCK_SIZE;
     private int inputStreamVersion = DEFAULT_INPUT_STREAM_VERSION;
+    private boolean readAheadEnabled = DEFAULT_READ_AHEAD_ENABLE;
+    private int readAheadBlocks = DEFAULT_READ_AHEAD_BLOCKS;
+    private int vectoredReadMinSeekSize = DEFAULT_VECTORED_READ_MIN_SEEK_SIZE;
+    private int vectoredReadMaxMergedSize = DEFAULT_VECTORED_READ_MAX_MERGED_SIZE;
+    private VectoredReads vectoredReads;
+    private BlobTailCache tailCache;
+    private LocalBlockCache blockCache;
+    // Creates the blocks of block blob uploads, unless the SDK uploads them.
+    private UploadBlocks.Factory uploadBlockFactory;
+    // The pools of the upload and read-ahead buffers, or null.
+    private BufferPool uploadBufferPool;
+    private BufferPool readBufferPool;
+    // Bounds the number of blocks uploaded at a time.
+    private UploadConcurrencyController uploadConcurrency;
+    // The connections to an account when requests are scheduled, or 0.
+    private int requestSchedulerConnections;
 
     // Bandwidth throttling exponential back-off parameters
     //
@@ -348,6 +753,7 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
     private float selfThrottlingWriteFactor;
 
     private boolean autoThrottlingEnabled;
+    private boolean accountThrottlingEnabled;
 
     private TestHookOperationContext testHookOperationContext = null;
 
@@ -365,6 +771,41 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
 
     private boolean metadataKeyCaseSensitive;
 
+    // Parallel recursive listing. The pool is created on first use.
+    private int listThreads = DEFAULT_LIST_THREADS;
+    private ForkJoinPool listingPool;
+    private final Object listingPoolLock = new Object();
+
+    // Page blob data sizes resolved so far, by blob URI and ETag. Sizes of
+    // listed page blobs are resolved on a separate pool created on first use.
+    private final Map<String, Long> pageBlobDataSizes = Collections.synchronizedMap(
+            new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > MAX_CACHED_PAGE_BLOB_SIZES;
+                }
+            });
+    private int pageBlobSizeThreads = DEFAULT_PAGE_BLOB_SIZE_THREADS;
+    private ExecutorService pageBlobSizeExecutor;
+    private final Object pageBlobSizeExecutorLock = new Object();
+
+    private int purgeThreads = DEFAULT_PURGE_THREADS;
+    private boolean purgeBatchEnabled = DEFAULT_PURGE_BATCH_ENABLE;
+    private int bulkDeleteThreads = DEFAULT_BULK_DELETE_THREADS;
+    private int bulkRenameThreads = DEFAULT_BULK_RENAME_THREADS;
+
+    private long renameSyncCopyThreshold = DEFAULT_RENAME_SYNC_COPY_THRESHOLD;
+    private long renamePutBlockFromUrlThreshold = DEFAULT_RENAME_PUT_BLOCK_FROM_URL_THRESHOLD;
+    // The number of renames done with each copy method.
+    private final AtomicLongArray renameCopyCounts =
+            new AtomicLongArray(RenameCopyMethod.values().length);
+
+    private long copyBlobWaitTimeout = DEFAULT_COPYBLOB_WAIT_TIMEOUT;
+    private long copyBlobPollMaxInterval = DEFAULT_COPYBLOB_POLL_MAX_INTERVAL;
+    // Time spent waiting for pending server-side copies, and their number.
+    private final AtomicLong copyWaitTimeMs = new AtomicLong();
+    private final AtomicLong copyWaitCount = new AtomicLong();
+
     /** The error message template when container is not accessible. */
     public static final String NO_ACCESS_TO_CONTAINER_MSG = "No credentials found for "
             + "account %s in the configuration, and its container %s is not "
@@ -481,6 +922,192 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
         return bandwidthGaugeUpdater;
     }
 
+    /**
+     * @return the total time, in milliseconds, that renames spent waiting for
+     *         pending server-side copies to complete.
+     */
+    public long getCopyWaitTimeMillis() {
+        return copyWaitTimeMs.get();
+    }
+
+    /**
+     * @return the number of server-side copies that were still pending when
+     *         they were started and had to be waited for.
+     */
+    public long getCopyWaitCount() {
+        return copyWaitCount.get();
+    }
+
+    /**
+     * @return the number of blobs renamed with the given copy method.
+     */
+    public long getRenameCopyCount(RenameCopyMethod method) {
+        return renameCopyCounts.get(method.ordinal());
+    }
+
+    /**
+     * @return the number of blob tails read from the tail cache.
+     */
+    public long getTailCacheHitCount() {
+        return tailCache == null ? 0 : tailCache.getHitCount();
+    }
+
+    /**
+     * @return the number of blob tails that were not in the tail cache, or
+     *         had changed since they were cached.
+     */
+    public long getTailCacheMissCount() {
+        return tailCache == null ? 0 : tailCache.getMissCount();
+    }
+
+    /**
+     * @return the number of blocks read from the local block cache.
+     */
+    public long getBlockCacheHitCount() {
+        return blockCache == null ? 0 : blockCache.getHitCount();
+    }
+
+    /**
+     * @return the number of blocks that were not in the local block cache.
+     */
+    public long getBlockCacheMissCount() {
+        return blockCache == null ? 0 : blockCache.getMissCount();
+    }
+
+    /**
+     * @return the memory, in bytes, of the free buffers kept by the buffer
+     *         pools this store uses, which they share with the rest of the
+     *         JVM.
+     */
+    public long getBufferPoolBytes() {
+        long bytes = 0;
+        for (BufferPool pool : getBufferPools()) {
+            bytes += pool.getFreeBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of free buffers in the buffer pools this store uses.
+     */
+    public long getBufferPoolFreeCount() {
+        long count = 0;
+        for (BufferPool pool : getBufferPools()) {
+            count += pool.getFreeBufferCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of buffers the buffer pools this store uses
+     *         allocated because none was free.
+     */
+    public long getBufferPoolAllocationCount() {
+        long count = 0;
+        for (BufferPool pool : getBufferPools()) {
+            count += pool.getAllocationCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of buffers the buffer pools this store uses dropped
+     *         because their free buffers were at the limit.
+     */
+    public long getBufferPoolDropCount() {
+        long count = 0;
+        for (BufferPool pool : getBufferPools()) {
+            count += pool.getDropCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of blocks a stream uploads at a time at most, as
+     *         adapted to the throughput and throttling of the account.
+     */
+    public int getUploadStreamConcurrency() {
+        return uploadConcurrency.getStreamLimit();
+    }
+
+    /**
+     * @return the number of blocks the streams of this store upload at a
+     *         time at most, unless {@code fs.azure.upload.buffer} is
+     *         {@value #UPLOAD_BUFFER_SDK}.
+     */
+    public int getUploadGlobalConcurrency() {
+        return uploadConcurrency.getGlobalLimit();
+    }
+
+    /**
+     * @return the number of times the upload concurrency was lowered after
+     *         throttling or timeouts.
+     */
+    public long getUploadConcurrencyDecreaseCount() {
+        return uploadConcurrency.getDecreaseCount();
+    }
+
+    /**
+     * @return the number of requests of the JVM that waited for a connection
+     *         of the request schedulers.
+     */
+    public long getRequestSchedulerWaitCount() {
+        long count = 0;
+        for (RequestScheduler scheduler : RequestScheduler.getSchedulers()) {
+            count += scheduler.getWaitCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the time, in milliseconds, requests of the JVM waited for a
+     *         connection of the request schedulers.
+     */
+    public long getRequestSchedulerWaitTimeMillis() {
+        long time = 0;
+        for (RequestScheduler scheduler : RequestScheduler.getSchedulers()) {
+            time += scheduler.getWaitTimeMillis();
+        }
+        return time;
+    }
+
+    /**
+     * @return the number of times the account throttling budgets of the JVM
+     *         were lowered.
+     */
+    public long getAccountThrottlingDecreaseCount() {
+        long count = 0;
+        for (AccountThrottler throttler : AccountThrottler.getThrottlers()) {
+            count += throttler.getReadBudget().getDecreaseCount()
+                    + throttler.getWriteBudget().getDecreaseCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the time, in milliseconds, requests of the JVM were delayed by
+     *         the account throttling budgets.
+     */
+    public long getAccountThrottlingDelayMillis() {
+        long time = 0;
+        for (AccountThrottler throttler : AccountThrottler.getThrottlers()) {
+            time += throttler.getReadBudget().getDelayMillis()
+                    + throttler.getWriteBudget().getDelayMillis();
+        }
+        return time;
+    }
+
+    private Set<BufferPool> getBufferPools() {
+        Set<BufferPool> pools = new HashSet<>();
+        if (uploadBufferPool != null) {
+            pools.add(uploadBufferPool);
+        }
+        if (readBufferPool != null) {
+            pools.add(readBufferPool);
+        }
+        return pools;
+    }
+
     /**
      * Check if concurrent reads and writes on the same blob are allowed.
      *
@@ -586,6 +1213,13 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
             LOG.warn("Unable to initialize HBase root as an atomic rename directory.");
         }
         LOG.debug("Atomic rename directories: {} ", setToString(atomicRenameDirs));
+
+        // Keys are classified on every operation, so the directory sets are
+        // matched through precompiled matchers.
+        pageBlobDirMatcher = compileDirectorySet(pageBlobDirs);
+        blockBlobWithCompactionDirMatcher = compileDirectorySet(blockBlobWithCompationDirs);
+        atomicRenameDirMatcher = compileDirectorySet(atomicRenameDirs);
+
         metadataKeyCaseSensitive = conf
                 .getBoolean(KEY_BLOB_METADATA_KEY_CASE_SENSITIVE, true);
         if (!metadataKeyCaseSensitive) {
@@ -773,6 +1407,80 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
         this.inputStreamVersion = sessionConfiguration.getInt(
                 KEY_INPUT_STREAM_VERSION, DEFAULT_INPUT_STREAM_VERSION);
 
+        readAheadEnabled = sessionConfiguration.getBoolean(KEY_READ_AHEAD_ENABLE,
+                DEFAULT_READ_AHEAD_ENABLE);
+        readAheadBlocks = sessionConfiguration.getInt(KEY_READ_AHEAD_BLOCKS,
+                DEFAULT_READ_AHEAD_BLOCKS);
+        if (readAheadEnabled) {
+            ReadAheadBlockBlobInputStream.configureSharedPool(
+                    sessionConfiguration.getInt(KEY_READ_AHEAD_THREADS,
+                            DEFAULT_READ_AHEAD_THREADS),
+                    sessionConfiguration.getLong(KEY_READ_AHEAD_MEMORY_LIMIT,
+                            DEFAULT_READ_AHEAD_MEMORY_LIMIT));
+        }
+
+        vectoredReadMinSeekSize = sessionConfiguration.getInt(
+                KEY_VECTORED_READ_MIN_SEEK_SIZE, DEFAULT_VECTORED_READ_MIN_SEEK_SIZE);
+        vectoredReadMaxMergedSize = sessionConfiguration.getInt(
+                KEY_VECTORED_READ_MAX_MERGED_SIZE, DEFAULT_VECTORED_READ_MAX_MERGED_SIZE);
+        vectoredReads = new VectoredReads(vectoredReadMinSeekSize,
+                vectoredReadMaxMergedSize,
+                sessionConfiguration.getInt(KEY_VECTORED_READ_THREADS,
+                        DEFAULT_VECTORED_READ_THREADS));
+        if (sessionConfiguration.getBoolean(KEY_TAIL_CACHE_ENABLE,
+                DEFAULT_TAIL_CACHE_ENABLE)) {
+            tailCache = new BlobTailCache(
+                    sessionConfiguration.getInt(KEY_TAIL_CACHE_TAIL_SIZE,
+                            DEFAULT_TAIL_CACHE_TAIL_SIZE),
+                    sessionConfiguration.getInt(KEY_TAIL_CACHE_MAX_ENTRIES,
+                            DEFAULT_TAIL_CACHE_MAX_ENTRIES),
+                    sessionConfiguration.getLong(KEY_TAIL_CACHE_MEMORY_LIMIT,
+                            DEFAULT_TAIL_CACHE_MEMORY_LIMIT));
+        }
+        String blockCacheDir = sessionConfiguration.getTrimmed(KEY_BLOCK_CACHE_DIR);
+        if (blockCacheDir != null && !blockCacheDir.isEmpty()) {
+            try {
+                blockCache = LocalBlockCache.forDirectory(blockCacheDir,
+                        sessionConfiguration.getLong(KEY_BLOCK_CACHE_MAX_SIZE,
+                                DEFAULT_BLOCK_CACHE_MAX_SIZE));
+            } catch (IOException e) {
+                LOG.warn("Not caching blocks, failed to use {}", blockCacheDir, e);
+            }
+        }
+
+        long bufferPoolMemoryLimit = sessionConfiguration.getLong(
+                KEY_BUFFER_POOL_MEMORY_LIMIT, DEFAULT_BUFFER_POOL_MEMORY_LIMIT);
+        String uploadBuffer = sessionConfiguration.getTrimmed(KEY_UPLOAD_BUFFER,
+                DEFAULT_UPLOAD_BUFFER).toLowerCase(Locale.ROOT);
+        switch (uploadBuffer) {
+            case UPLOAD_BUFFER_SDK:
+                break;
+            case UPLOAD_BUFFER_ARRAY:
+                uploadBufferPool = BufferPool.getShared(false, bufferPoolMemoryLimit);
+                uploadBlockFactory = UploadBlocks.pooled(uploadBufferPool);
+                break;
+            case UPLOAD_BUFFER_BYTEBUFFER:
+                uploadBufferPool = BufferPool.getShared(true, bufferPoolMemoryLimit);
+                uploadBlockFactory = UploadBlocks.pooled(uploadBufferPool);
+                break;
+            case UPLOAD_BUFFER_DISK:
+                uploadBlockFactory = UploadBlocks.disk(sessionConfiguration,
+                        KEY_UPLOAD_BUFFER_DIR);
+                break;
+            default:
+                throw new AzureException(String.format("Unknown %s '%s'",
+                        KEY_UPLOAD_BUFFER, uploadBuffer));
+        }
+        int uploadThreads = sessionConfiguration.getInt(KEY_UPLOAD_THREADS,
+                DEFAULT_UPLOAD_THREADS);
+        if (uploadBlockFactory != null) {
+            BlockBlobUploadStream.configureSharedPool(uploadThreads);
+        }
+        if (sessionConfiguration.getBoolean(KEY_READ_BUFFER_POOL_ENABLE,
+                DEFAULT_READ_BUFFER_POOL_ENABLE)) {
+            readBufferPool = BufferPool.getShared(false, bufferPoolMemoryLimit);
+        }
+
         // The job may want to specify a timeout to use when engaging the
         // storage service. The default is currently 90 seconds. It may
         // be necessary to increase this value for long latencies in larger
@@ -795,6 +1503,36 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
         concurrentWrites = sessionConfiguration.getInt(
                 KEY_CONCURRENT_CONNECTION_VALUE_OUT,
                 Math.min(cpuCores, DEFAULT_CONCURRENT_WRITES));
+        uploadConcurrency = new UploadConcurrencyController(
+                sessionConfiguration.getBoolean(KEY_UPLOAD_CONCURRENCY_ADAPTIVE,
+                        DEFAULT_UPLOAD_CONCURRENCY_ADAPTIVE),
+                concurrentWrites,
+                Math.max(concurrentWrites, sessionConfiguration.getInt(
+                        KEY_UPLOAD_CONCURRENCY_MAX, DEFAULT_UPLOAD_CONCURRENCY_MAX)),
+                uploadThreads);
+
+        listThreads = sessionConfiguration.getInt(KEY_LIST_THREADS,
+                DEFAULT_LIST_THREADS);
+        pageBlobSizeThreads = sessionConfiguration.getInt(
+                KEY_PAGE_BLOB_SIZE_THREADS, DEFAULT_PAGE_BLOB_SIZE_THREADS);
+        purgeThreads = sessionConfiguration.getInt(KEY_PURGE_THREADS,
+                DEFAULT_PURGE_THREADS);
+        purgeBatchEnabled = sessionConfiguration.getBoolean(KEY_PURGE_BATCH_ENABLE,
+                DEFAULT_PURGE_BATCH_ENABLE);
+        bulkDeleteThreads = sessionConfiguration.getInt(KEY_BULK_DELETE_THREADS,
+                DEFAULT_BULK_DELETE_THREADS);
+        bulkRenameThreads = sessionConfiguration.getInt(KEY_BULK_RENAME_THREADS,
+                DEFAULT_BULK_RENAME_THREADS);
+        renameSyncCopyThreshold = sessionConfiguration.getLong(
+                KEY_RENAME_SYNC_COPY_THRESHOLD, DEFAULT_RENAME_SYNC_COPY_THRESHOLD);
+        renamePutBlockFromUrlThreshold = sessionConfiguration.getLong(
+                KEY_RENAME_PUT_BLOCK_FROM_URL_THRESHOLD,
+                DEFAULT_RENAME_PUT_BLOCK_FROM_URL_THRESHOLD);
+        copyBlobWaitTimeout = sessionConfiguration.getLong(
+                KEY_COPYBLOB_WAIT_TIMEOUT, DEFAULT_COPYBLOB_WAIT_TIMEOUT);
+        copyBlobPollMaxInterval = Math.max(COPYBLOB_POLL_MIN_INTERVAL,
+                sessionConfiguration.getLong(KEY_COPYBLOB_POLL_MAX_INTERVAL,
+                        DEFAULT_COPYBLOB_POLL_MAX_INTERVAL));
 
         // Set up the exponential retry policy.
         //
@@ -814,8 +1552,15 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
                 new RetryExponentialRetry(minBackoff, deltaBackoff, maxBackoff, maxRetries));
 
 
+        accountThrottlingEnabled = sessionConfiguration.getBoolean(
+                KEY_ACCOUNT_THROTTLING_ENABLE, DEFAULT_ACCOUNT_THROTTLING_ENABLE);
+        if (accountThrottlingEnabled) {
+            AccountThrottler.configureSharedFile(sessionConfiguration.getTrimmed(
+                    KEY_ACCOUNT_THROTTLING_SHARED_FILE));
+        }
+
         // read the self-throttling config.
-        selfThrottlingEnabled = sessionConfiguration.getBoolean(
+        selfThrottlingEnabled = !accountThrottlingEnabled && sessionConfiguration.getBoolean(
                 KEY_SELF_THROTTLE_ENABLE, DEFAULT_SELF_THROTTLE_ENABLE);
 
         selfThrottlingReadFactor = sessionConfiguration.getFloat(
@@ -824,7 +1569,7 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
         selfThrottlingWriteFactor = sessionConfiguration.getFloat(
                 KEY_SELF_THROTTLE_WRITE_FACTOR, DEFAULT_SELF_THROTTLE_WRITE_FACTOR);
 
-        if (!selfThrottlingEnabled) {
+        if (!selfThrottlingEnabled && !accountThrottlingEnabled) {
             autoThrottlingEnabled = sessionConfiguration.getBoolean(
                     KEY_AUTO_THROTTLE_ENABLE,
                     DEFAULT_AUTO_THROTTLE_ENABLE);
@@ -832,10 +1577,18 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
                 ClientThrottlingIntercept.initializeSingleton();
             }
         } else {
-            // cannot enable both self-throttling and client-throttling
+            // cannot enable both self-throttling or account throttling and
+            // client-throttling
             autoThrottlingEnabled = false;
         }
 
+        if (sessionConfiguration.getBoolean(KEY_REQUEST_SCHEDULER_ENABLE,
+                DEFAULT_REQUEST_SCHEDULER_ENABLE)) {
+            requestSchedulerConnections = Math.max(1, sessionConfiguration.getInt(
+                    KEY_REQUEST_SCHEDULER_MAX_CONNECTIONS,
+                    DEFAULT_REQUEST_SCHEDULER_MAX_CONNECTIONS));
+        }
+
         OperationContext.setLoggingEnabledByDefault(sessionConfiguration.
                 getBoolean(KEY_ENABLE_STORAGE_CLIENT_LOGGING, false));
 
@@ -1165,6 +1918,20 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
         }
     }
 
+    /**
+     * The ways a rename copies a blob before deleting the source.
+     */
+    public enum RenameCopyMethod {
+        /** A copy that completes in the request that starts it. */
+        SYNC_COPY,
+        /** Blocks staged in parallel from the source, then committed. */
+        PUT_BLOCK_FROM_URL,
+        /** A copy that is polled until it completes. */
+        ASYNC_COPY,
+        /** A copy through the client, when server-side copies are throttled. */
+        CLIENT_COPY
+    }
+
     private enum ContainerState {
         /**
          * We haven't checked the container state yet.
@@ -1262,7 +2029,7 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
      * blob instead of block blob.
      */
     public boolean isPageBlobKey(String key) {
-        return isKeyForDirectorySet(key, pageBlobDirs);
+        return pageBlobDirMatcher.matches(key);
     }
 
     /**
@@ -1273,7 +2040,7 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
      * @return true, if the file is in directory with block compaction enabled.
      */
     public boolean isBlockBlobWithCompactionKey(String key) {
-        return isKeyForDirectorySet(key, blockBlobWithCompationDirs);
+        return blockBlobWithCompactionDirMatcher.matches(key);
     }
 
     /**
@@ -1282,7 +2049,31 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
      */
     @Override
     public boolean isAtomicRenameKey(String key) {
-        return isKeyForDirectorySet(key, atomicRenameDirs);
+        return atomicRenameDirMatcher.matches(key);
+    }
+
+    /**
+     * Compiles a directory set into a matcher that gives the same answers as
+     * {@link #isKeyForDirectorySet}, including the directories relative to the
+     * default file system.
+     */
+    private DirectorySetMatcher compileDirectorySet(Set<String> dirSet) {
+        String defaultFS = FileSystem.getDefaultUri(sessionConfiguration).toString();
+        List<String> patterns = new ArrayList<String>();
+        for (String dir : dirSet) {
+            patterns.add(dir);
+            if (dir.isEmpty()) {
+                continue;
+            }
+            try {
+                if (null == new URI(dir).getAuthority()) {
+                    patterns.add(trim(defaultFS, "/") + "/" + dir);
+                }
+            } catch (URISyntaxException e) {
+                LOG.info("URI syntax error creating URI for {}", dir);
+            }
+        }
+        return DirectorySetMatcher.compile(patterns);
     }
 
     public boolean isKeyForDirectorySet(String key, Set<String> dirSet) {
@@ -1512,7 +2303,8 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
         options.setStoreBlobContentMD5(sessionConfiguration.getBoolean(
                 KEY_STORE_BLOB_MD5, false));
         options.setUseTransactionalContentMD5(getUseTransactionalContentMD5());
-        options.setConcurrentRequestCount(concurrentWrites);
+        options.setConcurrentRequestCount(uploadConcurrency != null
+                ? uploadConcurrency.getStreamLimit() : concurrentWrites);
 
         options.setRetryPolicyFactory(new RetryExponentialRetry(minBackoff,
                 deltaBackoff, maxBackoff, maxRetries));
@@ -1630,6 +2422,10 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
         if (blob instanceof CloudPageBlobWrapper){
             return new PageBlobOutputStream(
                     (CloudPageBlobWrapper) blob, getInstrumentedContext(), sessionConfiguration);
+        } else if (uploadBlockFactory != null) {
+            return new BlockBlobUploadStream((CloudBlockBlobWrapper) blob,
+                    getUploadOptions(), this::getInstrumentedContext,
+                    uploadBlockSizeBytes, uploadConcurrency, uploadBlockFactory);
         } else {
 
             // Handle both ClouldBlockBlobWrapperImpl and (only for the test code path)
@@ -1645,7 +2441,17 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
      */
     private InputStream openInputStream(CloudBlobWrapper blob,
                                         Optional<Configuration> options) throws StorageException, IOException {
-        if (blob instanceof CloudBlockBlobWrapper) {
+        if (blob instanceof CloudBlockBlobWrapper
+                && (readAheadEnabled || tailCache != null || blockCache != null)) {
+            int blocks = readAheadEnabled ? readAheadBlocks : 0;
+            LOG.debug("Using read-ahead stream with {} blocks", blocks);
+            return new ReadAheadBlockBlobInputStream((CloudBlockBlobWrapper) blob,
+                    getDownloadOptions(),
+                    () -> getInstrumentedContext(isConcurrentOOBAppendAllowed()),
+                    downloadBlockSizeBytes, blocks,
+                    isConcurrentOOBAppendAllowed(), vectoredReads, tailCache,
+                    blockCache, readBufferPool);
+        } else if (blob instanceof CloudBlockBlobWrapper) {
             LOG.debug("Using stream seek algorithm {}", inputStreamVersion);
             switch(inputStreamVersion) {
                 case 1:
@@ -1690,27 +2496,65 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
 
     private String getMetadataAttribute(HashMap<String, String> metadata,
                                         String... keyAlternatives) {
-        if (null == metadata) {
+        return getMetadataAttribute(getMetadataView(metadata), keyAlternatives);
+    }
+
+    /**
+     * Looks up a metadata attribute in a view returned by
+     * {@link #getMetadataView}, trying the given keys in order.
+     */
+    private String getMetadataAttribute(Map<String, String> metadataView,
+                                        String... keyAlternatives) {
+        if (null == metadataView) {
             return null;
         }
         for (String key : keyAlternatives) {
-            if (metadataKeyCaseSensitive) {
-                if (metadata.containsKey(key)) {
-                    return metadata.get(key);
-                }
-            } else {
-                // See HADOOP-17643 for details on why this case insensitive metadata
-                // checks been added
-                for (Entry<String, String> entry : metadata.entrySet()) {
-                    if (key.equalsIgnoreCase(entry.getKey())) {
-                        return entry.getValue();
-                    }
-                }
+            String lookupKey = metadataKeyCaseSensitive ? key : foldMetadataKey(key);
+            if (metadataView.containsKey(lookupKey)) {
+                return metadataView.get(lookupKey);
             }
         }
         return null;
     }
 
+    /**
+     * Returns the metadata of a blob or container in the form that metadata
+     * attributes are looked up in. If metadata keys are case insensitive, the
+     * keys are case-folded once here, so that every lookup is a single hash
+     * lookup rather than a scan of all the entries.
+     */
+    private Map<String, String> getMetadataView(HashMap<String, String> metadata) {
+        if (metadataKeyCaseSensitive || null == metadata) {
+            return metadata;
+        }
+        // See HADOOP-17643 for details on why this case insensitive metadata
+        // checks been added
+        Map<String, String> foldedMetadata = new HashMap<>(metadata.size() * 2);
+        for (Entry<String, String> entry : metadata.entrySet()) {
+            foldedMetadata.putIfAbsent(foldMetadataKey(entry.getKey()),
+                    entry.getValue());
+        }
+        return foldedMetadata;
+    }
+
+    /**
+     * Case-folds a metadata key such that two keys fold to the same string if
+     * and only if they are equal ignoring case.
+     */
+    private static String foldMetadataKey(String key) {
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (Character.toLowerCase(Character.toUpperCase(c)) != c) {
+                char[] folded = key.toCharArray();
+                for (int j = i; j < folded.length; j++) {
+                    folded[j] = Character.toLowerCase(Character.toUpperCase(folded[j]));
+                }
+                return new String(folded);
+            }
+        }
+        return key;
+    }
+
     private static void removeMetadataAttribute(CloudBlobWrapper blob,
                                                 String key) {
         HashMap<String, String> metadata = blob.getMetadata();
@@ -1729,16 +2573,42 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
     }
 
     private PermissionStatus getPermissionStatus(CloudBlobWrapper blob) {
-        String permissionMetadataValue = getMetadataAttribute(blob.getMetadata(),
+        return getPermissionStatus(getMetadataView(blob.getMetadata()));
+    }
+
+    private PermissionStatus getPermissionStatus(Map<String, String> metadataView) {
+        String permissionMetadataValue = getMetadataAttribute(metadataView,
                 PERMISSION_METADATA_KEY, OLD_PERMISSION_METADATA_KEY);
         if (permissionMetadataValue != null) {
-            return PermissionStatusJsonSerializer.fromJSONString(
-                    permissionMetadataValue);
+            return internPermissionStatus(permissionMetadataValue);
         } else {
             return defaultPermissionNoBlobMetadata();
         }
     }
 
+    /**
+     * Returns the shared, immutable permission status for a permission metadata
+     * value. The value is only parsed when the status is first read.
+     */
+    private static PermissionStatus internPermissionStatus(
+            String permissionMetadataValue) {
+        PermissionStatus permissionStatus =
+                PERMISSION_STATUS_CACHE.get(permissionMetadataValue);
+        if (permissionStatus == null) {
+            if (PERMISSION_STATUS_CACHE.size() >= MAX_CACHED_PERMISSION_STATUSES) {
+                PERMISSION_STATUS_CACHE.clear();
+            }
+            permissionStatus = new LazyPermissionStatus(permissionMetadataValue,
+                    PermissionStatusJsonSerializer::fromJSONString);
+            PermissionStatus existing = PERMISSION_STATUS_CACHE.putIfAbsent(
+                    permissionMetadataValue, permissionStatus);
+            if (existing != null) {
+                permissionStatus = existing;
+            }
+        }
+        return permissionStatus;
+    }
+
     private static void storeFolderAttribute(CloudBlobWrapper blob) {
         storeMetadataAttribute(blob, IS_FOLDER_METADATA_KEY, "true");
         // Remove the old metadata key if present
@@ -1786,20 +2656,17 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
     }
 
     private boolean retrieveFolderAttribute(CloudBlobWrapper blob) {
-        HashMap<String, String> metadata = blob.getMetadata();
-        if (null != metadata) {
+        return retrieveFolderAttribute(getMetadataView(blob.getMetadata()));
+    }
+
+    private boolean retrieveFolderAttribute(Map<String, String> metadataView) {
+        if (null != metadataView) {
             if (metadataKeyCaseSensitive) {
-                return metadata.containsKey(IS_FOLDER_METADATA_KEY)
-                        || metadata.containsKey(OLD_IS_FOLDER_METADATA_KEY);
+                return metadataView.containsKey(IS_FOLDER_METADATA_KEY)
+                        || metadataView.containsKey(OLD_IS_FOLDER_METADATA_KEY);
             } else {
-                // See HADOOP-17643 for details on why this case insensitive metadata
-                // checks been added
-                for (String key : metadata.keySet()) {
-                    if (key.equalsIgnoreCase(IS_FOLDER_METADATA_KEY)
-                            || key.equalsIgnoreCase(OLD_IS_FOLDER_METADATA_KEY)) {
-                        return true;
-                    }
-                }
+                return metadataView.containsKey(foldMetadataKey(IS_FOLDER_METADATA_KEY))
+                        || metadataView.containsKey(foldMetadataKey(OLD_IS_FOLDER_METADATA_KEY));
             }
         }
         return false;
@@ -2170,7 +3037,9 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
             }
         });
 
-        if (selfThrottlingEnabled) {
+        if (accountThrottlingEnabled) {
+            AccountThrottler.hook(operationContext);
+        } else if (selfThrottlingEnabled) {
             SelfThrottlingIntercept.hook(operationContext, selfThrottlingReadFactor,
                     selfThrottlingWriteFactor);
         } else if (autoThrottlingEnabled) {
@@ -2197,8 +3066,21 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
                     testHookOperationContext.modifyOperationContext(operationContext);
         }
 
+        // The last sending listener: a connection is only given back once
+        // the request completes, which the SDK only reports for requests
+        // that were sent, so no listener may fail after it took one. It also
+        // comes after the throttling, which may delay the request, so that
+        // the request does not hold a connection meanwhile.
+        if (requestSchedulerConnections > 0) {
+            RequestScheduler.hook(operationContext, requestSchedulerConnections);
+        }
+
         ErrorMetricUpdater.hook(operationContext, instrumentation);
 
+        if (uploadConcurrency != null) {
+            uploadConcurrency.hook(operationContext);
+        }
+
         // Return the operation context.
         return operationContext;
     }
@@ -2247,11 +3129,12 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
                     // properties.
                     blob.downloadAttributes(getInstrumentedContext());
                     BlobProperties properties = blob.getProperties();
+                    Map<String, String> metadataView = getMetadataView(blob.getMetadata());
 
-                    if (retrieveFolderAttribute(blob)) {
+                    if (retrieveFolderAttribute(metadataView)) {
                         LOG.debug("{} is a folder blob.", key);
                         return new FileMetadata(key, properties.getLastModified().getTime(),
-                                getPermissionStatus(blob), BlobMaterialization.Explicit, hadoopBlockSize);
+                                getPermissionStatus(metadataView), BlobMaterialization.Explicit, hadoopBlockSize);
                     } else {
 
                         LOG.debug("{} is a normal blob.", key);
@@ -2260,7 +3143,7 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
                                 key, // Always return denormalized key with metadata.
                                 getDataLength(blob, properties),
                                 properties.getLastModified().getTime(),
-                                getPermissionStatus(blob), hadoopBlockSize);
+                                getPermissionStatus(metadataView), hadoopBlockSize);
                     }
                 } catch(StorageException e){
                     if (!NativeAzureFileSystemHelper.isFileNotFoundException(e)) {
@@ -2364,12 +3247,7 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
             checkContainer(ContainerAccessType.PureRead);
 
             InputStream inputStream = openInputStream(getBlobReference(key), options);
-            if (startByteOffset > 0) {
-                // Skip bytes and ignore return value. This is okay
-                // because if you try to skip too far you will be positioned
-                // at the end and reads will not return data.
-                inputStream.skip(startByteOffset);
-            }
+            skipToOffset(inputStream, startByteOffset);
             return inputStream;
         } catch (IOException e) {
             throw e;
@@ -2379,15 +3257,120 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
         }
     }
 
+    /**
+     * Positions a newly opened stream at the given offset.
+     *
+     * The streams only move their position on skip; the first read then
+     * fetches data from the new position, so nothing before the offset is
+     * downloaded. A single skip may stop short, for instance at a page of a
+     * page blob that is not full, so skip until the offset is reached. If
+     * the offset is past the end, the stream is left at the end and reads
+     * will not return data.
+     */
+    private static void skipToOffset(InputStream inputStream, long offset)
+            throws IOException {
+        long remaining = offset;
+        while (remaining > 0) {
+            long skipped;
+            try {
+                skipped = inputStream.skip(remaining);
+            } catch (EOFException e) {
+                // Page blob streams fail to skip once they are at the end.
+                if (remaining == offset) {
+                    throw e;
+                }
+                break;
+            }
+            if (skipped <= 0) {
+                break;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /**
+     * Starts reading the given ranges of a blob; the data of each range is
+     * set on its future as it arrives. See {@link VectoredReadable}.
+     *
+     * Ranges of block blobs are fetched in parallel, merging nearby ranges
+     * into one request. Page blobs are read through a single stream, so their
+     * ranges are read in order before this method returns.
+     *
+     * @throws IllegalArgumentException if ranges overlap.
+     */
+    public void readVectored(String key, List<? extends ReadRange> ranges,
+                             IntFunction<ByteBuffer> allocate) throws IOException {
+        try {
+            checkContainer(ContainerAccessType.PureRead);
+            CloudBlobWrapper blob = getBlobReference(key);
+            if (blob instanceof CloudBlockBlobWrapper) {
+                // The stream fetches the ranges, without read-ahead. The
+                // ranges are read through it, so it is only closed once they
+                // all completed.
+                ReadAheadBlockBlobInputStream in = new ReadAheadBlockBlobInputStream(
+                        (CloudBlockBlobWrapper) blob, getDownloadOptions(),
+                        () -> getInstrumentedContext(isConcurrentOOBAppendAllowed()),
+                        downloadBlockSizeBytes, 0, isConcurrentOOBAppendAllowed(),
+                        vectoredReads, tailCache, blockCache, readBufferPool);
+                try {
+                    in.readVectored(ranges, allocate);
+                } catch (IOException | RuntimeException e) {
+                    IOUtils.closeStream(in);
+                    throw e;
+                }
+                CompletableFuture.allOf(ranges.stream().map(ReadRange::getData)
+                        .toArray(CompletableFuture<?>[]::new))
+                        .whenComplete((result, failure) -> IOUtils.closeStream(in));
+                return;
+            }
+            blob.downloadAttributes(getInstrumentedContext());
+            long length = getDataLength(blob, blob.getProperties());
+            try (InputStream in = openInputStream(blob, Optional.empty())) {
+                long[] position = {0};
+                new VectoredReads(vectoredReadMinSeekSize, vectoredReadMaxMergedSize, 0)
+                        .read(ranges, allocate, length, (offset, count) -> {
+                            skipToOffset(in, offset - position[0]);
+                            byte[] data = new byte[count];
+                            IOUtils.readFully(in, data, 0, count);
+                            position[0] = offset + count;
+                            return data;
+                        });
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            // Re-throw as an Azure storage exception.
+            throw new AzureException(e);
+        }
+    }
+
     @Override
     public FileMetadata[] list(String prefix, final int maxListingCount,
                                final int maxListingDepth) throws IOException {
+        return listInternal(prefix, maxListingCount, maxListingDepth).toArray();
+    }
+
+    /**
+     * Lists the blobs under the given prefix like {@link #list}, but returns the
+     * compact listing. Callers that only need keys, lengths or modification
+     * times can read them without materializing a {@link FileMetadata} per
+     * entry.
+     */
+    public CompactFileMetadataList listCompact(String prefix,
+                                               final int maxListingCount, final int maxListingDepth)
+            throws IOException {
         return listInternal(prefix, maxListingCount, maxListingDepth);
     }
 
-    private FileMetadata[] listInternal(String prefix, final int maxListingCount,
-                                        final int maxListingDepth)
+    private CompactFileMetadataList listInternal(String prefix, final int maxListingCount,
+                                                 final int maxListingDepth)
             throws IOException {
+        // Entries are appended in listing order. Sub-directories listed on
+        // the listing pool are spliced in where they were encountered, so
+        // that the outcome does not depend on task scheduling.
+        ListingSegments segments = new ListingSegments();
+        // Set when the listing fails, to stop the listings of the pool.
+        AtomicBoolean cancelled = new AtomicBoolean();
         try {
             checkContainer(ContainerAccessType.PureRead);
 
@@ -2403,47 +3386,42 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
                 enableFlatListing = true;
             }
 
+            // A flat listing with several list threads is split into shards: the
+            // first level is listed hierarchically and every blob prefix found
+            // there is then listed flat on the listing pool.
+            boolean shardedFlatListing = enableFlatListing && listThreads > 1;
+
             Iterable<ListBlobItem> objects;
             if (prefix.equals("/")) {
-                objects = listRootBlobs(true, enableFlatListing);
+                objects = listRootBlobs(true, enableFlatListing && !shardedFlatListing);
             } else {
-                objects = listRootBlobs(prefix, true, enableFlatListing);
+                objects = listRootBlobs(prefix, true,
+                        enableFlatListing && !shardedFlatListing);
             }
 
-            HashMap<String, FileMetadata> fileMetadata = new HashMap<>(256);
+            // Implicit directory entries are merged into the listing order; a
+            // flat listing has none.
+            SortedListingWindow window = new SortedListingWindow(
+                    prefix.equals("/") ? 0 : prefix.length(), !enableFlatListing,
+                    SortedListingWindow.DEFAULT_MAX_WINDOW_SIZE);
+
+            // Sub-directories are listed concurrently only when there is more
+            // than one level left to traverse.
+            boolean parallelListing = !enableFlatListing && listThreads > 1
+                    && (maxListingDepth < 0 || maxListingDepth > 1);
+            // The entries listed by this thread. The listings of the pool
+            // count their own entries, so that which entries they list does
+            // not depend on scheduling; the merged listing is truncated.
+            AtomicInteger listedCount = new AtomicInteger();
 
             for (ListBlobItem blobItem : objects) {
                 // Check that the maximum listing count is not exhausted.
                 //
-                if (0 < maxListingCount
-                        && fileMetadata.size() >= maxListingCount) {
+                if (isListingCountExhausted(maxListingCount, listedCount)) {
                     break;
                 }
 
                 if (blobItem instanceof CloudBlockBlobWrapper || blobItem instanceof CloudPageBlobWrapper) {
-                    String blobKey = null;
-                    CloudBlobWrapper blob = (CloudBlobWrapper) blobItem;
-                    BlobProperties properties = blob.getProperties();
-
-                    // Determine format of the blob name depending on whether an absolute
-                    // path is being used or not.
-                    blobKey = normalizeKey(blob);
-
-                    FileMetadata metadata;
-                    if (retrieveFolderAttribute(blob)) {
-                        metadata = new FileMetadata(blobKey,
-                                properties.getLastModified().getTime(),
-                                getPermissionStatus(blob),
-                                BlobMaterialization.Explicit,
-                                hadoopBlockSize);
-                    } else {
-                        metadata = new FileMetadata(
-                                blobKey,
-                                getDataLength(blob, properties),
-                                properties.getLastModified().getTime(),
-                                getPermissionStatus(blob),
-                                hadoopBlockSize);
-                    }
                     // Add the metadata but remove duplicates.  Note that the azure
                     // storage java SDK returns two types of entries: CloudBlobWrappter
                     // and CloudDirectoryWrapper.  In the case where WASB generated the
@@ -2456,51 +3434,62 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
                     // CloudDirectoryWrapper for each directory, and sometimes we receive
                     // one or the other but not both.  We remove duplicates, but
                     // prefer CloudBlobWrapper over CloudDirectoryWrapper.
-                    // Furthermore, it is very unfortunate that the list results are not
-                    // ordered, and it is a partial list which uses continuation.  So
-                    // the HashMap is the best structure to remove the duplicates, despite
-                    // its potential large size.
-                    fileMetadata.put(blobKey, metadata);
+                    // Both arrive close together in listing order, so the window
+                    // only holds back the entries in between.
+                    window.addBlob(toListedEntry((CloudBlobWrapper) blobItem),
+                            segments.entries());
+                    listedCount.incrementAndGet();
 
                 } else if (blobItem instanceof CloudBlobDirectoryWrapper) {
                     CloudBlobDirectoryWrapper directory = (CloudBlobDirectoryWrapper) blobItem;
+                    if (shardedFlatListing) {
+                        // A flat listing has no directory entries, so only the
+                        // blobs under this prefix are collected.
+                        segments.add(getListingPool().submit(
+                                new FlatListingShardTask(directory, maxListingCount,
+                                        cancelled)));
+                        continue;
+                    }
+
                     // Determine format of directory name depending on whether an absolute
                     // path is being used or not.
                     //
                     String dirKey = normalizeKey(directory);
-                    // Strip the last /
-                    if (dirKey.endsWith(PATH_DELIMITER)) {
-                        dirKey = dirKey.substring(0, dirKey.length() - 1);
-                    }
 
                     // Reached the targeted listing depth. Return metadata for the
-                    // directory using default permissions.
-                    //
-                    // Note: Something smarter should be done about permissions. Maybe
-                    // inherit the permissions of the first non-directory blob.
-                    // Also, getting a proper value for last-modified is tricky.
-                    FileMetadata directoryMetadata = new FileMetadata(dirKey, 0,
-                            defaultPermissionNoBlobMetadata(), BlobMaterialization.Implicit,
-                            hadoopBlockSize);
-
-                    // Add the directory metadata to the list only if it's not already
-                    // there.  See earlier note, we prefer CloudBlobWrapper over
-                    // CloudDirectoryWrapper because it may have additional metadata (
-                    // properties and ACLs).
-                    if (!fileMetadata.containsKey(dirKey)) {
-                        fileMetadata.put(dirKey, directoryMetadata);
+                    // directory using default permissions, unless a blob for it was
+                    // listed already. See earlier note.
+                    if (window.addPrefix(dirKey, implicitDirectoryEntry(dirKey),
+                            segments.entries())) {
+                        listedCount.incrementAndGet();
                     }
 
                     if (!enableFlatListing) {
                         // Currently at a depth of one, decrement the listing depth for
                         // sub-directories.
-                        buildUpList(directory, fileMetadata, maxListingCount,
-                                maxListingDepth - 1);
+                        if (parallelListing) {
+                            segments.add(getListingPool().submit(
+                                    new DirectoryListingTask(directory, true,
+                                            maxListingCount, maxListingDepth - 1,
+                                            cancelled)));
+                        } else {
+                            buildUpList(directory, segments.entries(), maxListingCount,
+                                    maxListingDepth - 1, listedCount);
+                        }
                     }
                 }
             }
-            return fileMetadata.values().toArray(new FileMetadata[fileMetadata.size()]);
+            window.finish(segments.entries());
+
+            CompactFileMetadataList fileMetadata = segments.join();
+            if (0 < maxListingCount && fileMetadata.size() > maxListingCount) {
+                fileMetadata.truncate(maxListingCount);
+            }
+            fileMetadata.resolvePendingLengths();
+            return fileMetadata;
         } catch (Exception e) {
+            cancelled.set(true);
+            segments.cancel();
             // Re-throw as an Azure storage exception.
             //
             throw new AzureException(e);
@@ -2513,18 +3502,24 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
      * the sorted order of the blob names.
      *
      * @param aCloudBlobDirectory Azure blob directory
-     * @param metadataHashMap a map of file metadata objects for each
-     *                          non-directory blob.
+     * @param metadataList the listing the file metadata of each blob is
+     *                     appended to.
      * @param maxListingCount maximum length of the built up list.
+     * @param listedCount the number of entries listed so far, shared with the
+     *                    rest of the listing.
      */
     private void buildUpList(CloudBlobDirectoryWrapper aCloudBlobDirectory,
-                             HashMap<String, FileMetadata> metadataHashMap, final int maxListingCount,
-                             final int maxListingDepth) throws Exception {
+                             CompactFileMetadataList metadataList, final int maxListingCount,
+                             final int maxListingDepth, AtomicInteger listedCount)
+            throws Exception {
 
         // Push the blob directory onto the stack.
         //
         AzureLinkedStack<Iterator<ListBlobItem>> dirIteratorStack =
                 new AzureLinkedStack<Iterator<ListBlobItem>>();
+        // The merge windows of the directories on the stack.
+        AzureLinkedStack<SortedListingWindow> windowStack =
+                new AzureLinkedStack<SortedListingWindow>();
 
         Iterable<ListBlobItem> blobItems = aCloudBlobDirectory.listBlobs(null,
                 false, EnumSet.of(BlobListingDetails.METADATA), null,
@@ -2543,6 +3538,8 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
 
         // Reset the current directory listing depth.
         int listingDepth = 1;
+        SortedListingWindow window = newListingWindow(aCloudBlobDirectory,
+                !isUnboundedDepth && maxListingDepth <= listingDepth);
 
         // Loop until all directories have been traversed in-order. Loop only
         // the following conditions are satisfied:
@@ -2550,12 +3547,12 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
         // (2) maxListingCount > 0 implies that the number of items in the
         // metadata list is less than the max listing count.
         while (null != blobItemIterator
-                && (maxListingCount <= 0 || metadataHashMap.size() < maxListingCount)) {
+                && !isListingCountExhausted(maxListingCount, listedCount)) {
             while (blobItemIterator.hasNext()) {
                 // Check if the count of items on the list exhausts the maximum
                 // listing count.
                 //
-                if (0 < maxListingCount && metadataHashMap.size() >= maxListingCount) {
+                if (isListingCountExhausted(maxListingCount, listedCount)) {
                     break;
                 }
 
@@ -2565,47 +3562,11 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
                 // directory item.
                 //
                 if (blobItem instanceof CloudBlockBlobWrapper || blobItem instanceof CloudPageBlobWrapper) {
-                    String blobKey = null;
-                    CloudBlobWrapper blob = (CloudBlobWrapper) blobItem;
-                    BlobProperties properties = blob.getProperties();
-
-                    // Determine format of the blob name depending on whether an absolute
-                    // path is being used or not.
-                    blobKey = normalizeKey(blob);
-
-                    FileMetadata metadata;
-                    if (retrieveFolderAttribute(blob)) {
-                        metadata = new FileMetadata(blobKey,
-                                properties.getLastModified().getTime(),
-                                getPermissionStatus(blob),
-                                BlobMaterialization.Explicit,
-                                hadoopBlockSize);
-                    } else {
-                        metadata = new FileMetadata(
-                                blobKey,
-                                getDataLength(blob, properties),
-                                properties.getLastModified().getTime(),
-                                getPermissionStatus(blob),
-                                hadoopBlockSize);
-                    }
-
-                    // Add the metadata but remove duplicates.  Note that the azure
-                    // storage java SDK returns two types of entries: CloudBlobWrappter
-                    // and CloudDirectoryWrapper.  In the case where WASB generated the
-                    // data, there will be an empty blob for each "directory", and we will
-                    // receive a CloudBlobWrapper.  If there are also files within this
-                    // "directory", we will also receive a CloudDirectoryWrapper.  To
-                    // complicate matters, the data may not be generated by WASB, in
-                    // which case we may not have an empty blob for each "directory".
-                    // So, sometimes we receive both a CloudBlobWrapper and a
-                    // CloudDirectoryWrapper for each directory, and sometimes we receive
-                    // one or the other but not both.  We remove duplicates, but
-                    // prefer CloudBlobWrapper over CloudDirectoryWrapper.
-                    // Furthermore, it is very unfortunate that the list results are not
-                    // ordered, and it is a partial list which uses continuation.  So
-                    // the HashMap is the best structure to remove the duplicates, despite
-                    // its potential large size.
-                    metadataHashMap.put(blobKey, metadata);
+                    // Add the metadata. Duplicates with implicit directory entries
+                    // are removed by the window, see listInternal.
+                    window.addBlob(toListedEntry((CloudBlobWrapper) blobItem),
+                            metadataList);
+                    listedCount.incrementAndGet();
                 } else if (blobItem instanceof CloudBlobDirectoryWrapper) {
                     CloudBlobDirectoryWrapper directory = (CloudBlobDirectoryWrapper) blobItem;
 
@@ -2613,9 +3574,14 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
                     // the stack of iterators and start iterating through the current
                     // directory.
                     if (isUnboundedDepth || maxListingDepth > listingDepth) {
+                        // Everything sorting before the directory contents goes
+                        // out first.
+                        window.addPrefix(normalizeKey(directory), null, metadataList);
+
                         // Push the current directory on the stack and increment the listing
                         // depth.
                         dirIteratorStack.push(blobItemIterator);
+                        windowStack.push(window);
                         ++listingDepth;
 
                         // The current blob item represents the new directory. Get
@@ -2625,36 +3591,23 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
                                 EnumSet.noneOf(BlobListingDetails.class), null,
                                 getInstrumentedContext());
                         blobItemIterator = blobItems.iterator();
+                        window = newListingWindow(directory,
+                                !isUnboundedDepth && maxListingDepth <= listingDepth);
                     } else {
                         // Determine format of directory name depending on whether an
                         // absolute path is being used or not.
                         String dirKey = normalizeKey(directory);
 
-                        // Add the directory metadata to the list only if it's not already
-                        // there.  See earlier note, we prefer CloudBlobWrapper over
-                        // CloudDirectoryWrapper because it may have additional metadata (
-                        // properties and ACLs).
-                        if (!metadataHashMap.containsKey(dirKey)) {
-
-                            // Reached the targeted listing depth. Return metadata for the
-                            // directory using default permissions.
-                            //
-                            // Note: Something smarter should be done about permissions. Maybe
-                            // inherit the permissions of the first non-directory blob.
-                            // Also, getting a proper value for last-modified is tricky.
-                            //
-                            FileMetadata directoryMetadata = new FileMetadata(dirKey,
-                                    0,
-                                    defaultPermissionNoBlobMetadata(),
-                                    BlobMaterialization.Implicit,
-                                    hadoopBlockSize);
-
-                            // Add the directory metadata to the list.
-                            metadataHashMap.put(dirKey, directoryMetadata);
+                        // Reached the targeted listing depth. Return metadata for the
+                        // directory using default permissions.
+                        if (window.addPrefix(dirKey, implicitDirectoryEntry(dirKey),
+                                metadataList)) {
+                            listedCount.incrementAndGet();
                         }
                     }
                 }
             }
+            window.finish(metadataList);
 
             // Traversal of directory tree
 
@@ -2668,6 +3621,7 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
                 // Pop the next directory item from the stack and decrement the
                 // depth.
                 blobItemIterator = dirIteratorStack.pop();
+                window = windowStack.pop();
                 --listingDepth;
 
                 // Assertion: Listing depth should not be less than zero.
@@ -2676,6 +3630,315 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
                 }
             }
         }
+
+        // Entries still held back when the listing count ran out.
+        window.finish(metadataList);
+        while (!windowStack.isEmpty()) {
+            windowStack.pop().finish(metadataList);
+        }
+    }
+
+    /**
+     * Creates the merge window for the listing of a blob directory.
+     *
+     * @param holdForDirectories whether the sub-directories of the directory
+     *                           are listed as implicit directory entries.
+     */
+    private SortedListingWindow newListingWindow(CloudBlobDirectoryWrapper directory,
+                                                 boolean holdForDirectories) {
+        return new SortedListingWindow(
+                normalizeKey(directory).length() + PATH_DELIMITER.length(),
+                holdForDirectories, SortedListingWindow.DEFAULT_MAX_WINDOW_SIZE);
+    }
+
+    /**
+     * Returns the listing entry for a blob returned by a listing, using the
+     * properties and metadata that came back with the listing.
+     */
+    private SortedListingWindow.Entry toListedEntry(CloudBlobWrapper blob)
+            throws AzureException {
+        BlobProperties properties = blob.getProperties();
+
+        // Determine format of the blob name depending on whether an absolute
+        // path is being used or not.
+        String blobKey = normalizeKey(blob);
+        Map<String, String> metadataView = getMetadataView(blob.getMetadata());
+
+        if (retrieveFolderAttribute(metadataView)) {
+            return SortedListingWindow.Entry.directory(blobKey,
+                    properties.getLastModified().getTime(),
+                    getPermissionStatus(metadataView),
+                    BlobMaterialization.Explicit);
+        } else if (pageBlobSizeThreads > 0 && blob instanceof CloudPageBlobWrapper
+                && getCachedPageBlobDataSize(blob, properties) == null) {
+            // The size takes a request of its own, which runs concurrently
+            // with the rest of the listing.
+            Future<Long> dataLength = getPageBlobSizeExecutor().submit(
+                    () -> getDataLength(blob, properties));
+            return SortedListingWindow.Entry.file(
+                    blobKey,
+                    dataLength,
+                    properties.getLastModified().getTime(),
+                    getPermissionStatus(metadataView));
+        } else {
+            return SortedListingWindow.Entry.file(
+                    blobKey,
+                    getDataLength(blob, properties),
+                    properties.getLastModified().getTime(),
+                    getPermissionStatus(metadataView));
+        }
+    }
+
+    /**
+     * Returns the pool used to resolve page blob sizes during listings,
+     * creating it on first use.
+     */
+    private ExecutorService getPageBlobSizeExecutor() {
+        synchronized (pageBlobSizeExecutorLock) {
+            if (pageBlobSizeExecutor == null) {
+                pageBlobSizeExecutor = Executors.newFixedThreadPool(pageBlobSizeThreads,
+                        BoundedTaskExecutor.newDaemonThreadFactory("AzureBlobPageSizeThread-"));
+            }
+            return pageBlobSizeExecutor;
+        }
+    }
+
+    /**
+     * Returns the entry for a directory that is only known from a blob prefix.
+     *
+     * Note: Something smarter should be done about permissions. Maybe
+     * inherit the permissions of the first non-directory blob.
+     * Also, getting a proper value for last-modified is tricky.
+     */
+    private static SortedListingWindow.Entry implicitDirectoryEntry(String dirKey) {
+        return SortedListingWindow.Entry.directory(dirKey, 0,
+                defaultPermissionNoBlobMetadata(), BlobMaterialization.Implicit);
+    }
+
+    private static boolean isListingCountExhausted(int maxListingCount,
+                                                   AtomicInteger listedCount) {
+        return 0 < maxListingCount && listedCount.get() >= maxListingCount;
+    }
+
+    /**
+     * Returns the pool used for parallel recursive listings, creating it on
+     * first use.
+     */
+    private ForkJoinPool getListingPool() {
+        synchronized (listingPoolLock) {
+            if (listingPool == null) {
+                listingPool = new ForkJoinPool(listThreads, pool -> {
+                    ForkJoinWorkerThread thread =
+                            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("AzureBlobListThread-" + thread.getPoolIndex());
+                    return thread;
+                }, null, false);
+            }
+            return listingPool;
+        }
+    }
+
+    /**
+     * Waits for a sub-directory listing and re-throws the exception it failed
+     * with, if any.
+     */
+    private static <T> T joinListing(ForkJoinTask<T> listing) throws Exception {
+        try {
+            return listing.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The listing of one directory level in listing order: runs of entries,
+     * interleaved with the listings of sub-directories that run on the
+     * listing pool.
+     */
+    private final class ListingSegments {
+        private final List<Object> segments = new ArrayList<>();
+        private CompactFileMetadataList current;
+
+        /**
+         * Returns the run of entries that new entries are appended to.
+         */
+        CompactFileMetadataList entries() {
+            if (current == null) {
+                current = new CompactFileMetadataList(hadoopBlockSize);
+                segments.add(current);
+            }
+            return current;
+        }
+
+        /**
+         * Adds a sub-directory listing after the entries appended so far.
+         */
+        void add(ForkJoinTask<CompactFileMetadataList> listing) {
+            segments.add(listing);
+            current = null;
+        }
+
+        void cancel() {
+            for (Object segment : segments) {
+                if (segment instanceof ForkJoinTask) {
+                    ((ForkJoinTask<?>) segment).cancel(false);
+                }
+            }
+        }
+
+        /**
+         * Waits for the sub-directory listings and concatenates all segments.
+         */
+        @SuppressWarnings("unchecked")
+        CompactFileMetadataList join() throws Exception {
+            if (segments.size() == 1 && segments.get(0) == current) {
+                return current;
+            }
+            CompactFileMetadataList results = new CompactFileMetadataList(hadoopBlockSize);
+            for (Object segment : segments) {
+                if (segment instanceof ForkJoinTask) {
+                    results.addAll(joinListing(
+                            (ForkJoinTask<CompactFileMetadataList>) segment));
+                } else {
+                    results.addAll((CompactFileMetadataList) segment);
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Lists a blob directory on the listing pool. A sub-task is forked for
+     * every sub-directory that is still within the listing depth, and its
+     * results are spliced in where the sub-directory was encountered. This
+     * yields the same entries as {@link #buildUpList} in the same order,
+     * regardless of how the tasks are scheduled: with a maximum listing
+     * count, every task lists up to that many entries of its own, and the
+     * merged listing is truncated.
+     */
+    private final class DirectoryListingTask extends RecursiveTask<CompactFileMetadataList> {
+        private static final long serialVersionUID = 1L;
+
+        private final CloudBlobDirectoryWrapper directory;
+        private final boolean includeMetadata;
+        private final int maxListingCount;
+        private final int remainingDepth;
+        private final AtomicBoolean cancelled;
+
+        DirectoryListingTask(CloudBlobDirectoryWrapper directory,
+                             boolean includeMetadata, int maxListingCount, int remainingDepth,
+                             AtomicBoolean cancelled) {
+            this.directory = directory;
+            this.includeMetadata = includeMetadata;
+            this.maxListingCount = maxListingCount;
+            this.remainingDepth = remainingDepth;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected CompactFileMetadataList compute() {
+            if (0 == remainingDepth || 0 == maxListingCount) {
+                return new CompactFileMetadataList(hadoopBlockSize);
+            }
+
+            boolean listSubDirectories = remainingDepth < 0 || remainingDepth > 1;
+            ListingSegments segments = new ListingSegments();
+            SortedListingWindow window = newListingWindow(directory, !listSubDirectories);
+            AtomicInteger listedCount = new AtomicInteger();
+            try {
+                Iterable<ListBlobItem> blobItems = directory.listBlobs(null, false,
+                        includeMetadata
+                                ? EnumSet.of(BlobListingDetails.METADATA)
+                                : EnumSet.noneOf(BlobListingDetails.class),
+                        null, getInstrumentedContext());
+                for (ListBlobItem blobItem : blobItems) {
+                    if (isListingCountExhausted(maxListingCount, listedCount)
+                            || cancelled.get()) {
+                        break;
+                    }
+                    if (blobItem instanceof CloudBlockBlobWrapper
+                            || blobItem instanceof CloudPageBlobWrapper) {
+                        window.addBlob(toListedEntry((CloudBlobWrapper) blobItem),
+                                segments.entries());
+                        listedCount.incrementAndGet();
+                    } else if (blobItem instanceof CloudBlobDirectoryWrapper) {
+                        CloudBlobDirectoryWrapper subDirectory =
+                                (CloudBlobDirectoryWrapper) blobItem;
+                        String dirKey = normalizeKey(subDirectory);
+                        if (listSubDirectories) {
+                            window.addPrefix(dirKey, null, segments.entries());
+                            DirectoryListingTask subTask = new DirectoryListingTask(
+                                    subDirectory, false, maxListingCount,
+                                    remainingDepth - 1, cancelled);
+                            subTask.fork();
+                            segments.add(subTask);
+                        } else if (window.addPrefix(dirKey,
+                                implicitDirectoryEntry(dirKey), segments.entries())) {
+                            listedCount.incrementAndGet();
+                        }
+                    }
+                }
+                window.finish(segments.entries());
+                return segments.join();
+            } catch (Exception e) {
+                segments.cancel();
+                throw new CompletionException(e);
+            }
+        }
+    }
+
+    /**
+     * Lists all blobs under a blob prefix with a flat listing, as one shard of
+     * a sharded flat listing. With a maximum listing count, every shard lists
+     * up to that many blobs of its own, and the merged listing is truncated.
+     */
+    private final class FlatListingShardTask extends RecursiveTask<CompactFileMetadataList> {
+        private static final long serialVersionUID = 1L;
+
+        private final CloudBlobDirectoryWrapper directory;
+        private final int maxListingCount;
+        private final AtomicBoolean cancelled;
+
+        FlatListingShardTask(CloudBlobDirectoryWrapper directory,
+                             int maxListingCount, AtomicBoolean cancelled) {
+            this.directory = directory;
+            this.maxListingCount = maxListingCount;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected CompactFileMetadataList compute() {
+            CompactFileMetadataList results = new CompactFileMetadataList(hadoopBlockSize);
+            AtomicInteger listedCount = new AtomicInteger();
+            try {
+                Iterable<ListBlobItem> blobItems = directory.listBlobs(null, true,
+                        EnumSet.of(BlobListingDetails.METADATA), null,
+                        getInstrumentedContext());
+                for (ListBlobItem blobItem : blobItems) {
+                    if (isListingCountExhausted(maxListingCount, listedCount)
+                            || cancelled.get()) {
+                        break;
+                    }
+                    if (blobItem instanceof CloudBlockBlobWrapper
+                            || blobItem instanceof CloudPageBlobWrapper) {
+                        // A flat listing is already sorted and has no blob
+                        // prefixes to merge.
+                        toListedEntry((CloudBlobWrapper) blobItem).appendTo(results);
+                        listedCount.incrementAndGet();
+                    }
+                }
+            } catch (StorageException | URISyntaxException | AzureException e) {
+                throw new CompletionException(e);
+            }
+            return results;
+        }
     }
 
     /**
@@ -2686,10 +3949,18 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
     private long getDataLength(CloudBlobWrapper blob, BlobProperties properties)
             throws AzureException {
         if (blob instanceof CloudPageBlobWrapper) {
+            Long cachedSize = getCachedPageBlobDataSize(blob, properties);
+            if (cachedSize != null) {
+                return cachedSize;
+            }
             try {
-                return PageBlobInputStream.getPageBlobDataSize((CloudPageBlobWrapper) blob,
+                long size = PageBlobInputStream.getPageBlobDataSize((CloudPageBlobWrapper) blob,
                         getInstrumentedContext(
                                 isConcurrentOOBAppendAllowed()));
+                if (properties.getEtag() != null) {
+                    pageBlobDataSizes.put(pageBlobDataSizeKey(blob, properties), size);
+                }
+                return size;
             } catch (Exception e) {
                 throw new AzureException(
                         "Unexpected exception getting page blob actual data size.", e);
@@ -2698,6 +3969,23 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
         return properties.getLength();
     }
 
+    /**
+     * Returns the data size resolved earlier for the page blob, if its ETag has
+     * not changed since.
+     */
+    private Long getCachedPageBlobDataSize(CloudBlobWrapper blob,
+                                           BlobProperties properties) {
+        if (properties.getEtag() == null) {
+            return null;
+        }
+        return pageBlobDataSizes.get(pageBlobDataSizeKey(blob, properties));
+    }
+
+    private static String pageBlobDataSizeKey(CloudBlobWrapper blob,
+                                              BlobProperties properties) {
+        return blob.getUri() + "\n" + properties.getEtag();
+    }
+
     /**
      * Deletes the given blob, taking special care that if we get a
      * blob-not-found exception upon retrying the operation, we just
@@ -2800,20 +4088,121 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
         }
     }
 
-    @Override
-    public void rename(String srcKey, String dstKey) throws IOException {
-        rename(srcKey, dstKey, false, null, true);
-    }
+    /**
+     * Deletes the blobs with the given keys on the bulk delete threads. The keys
+     * are consumed while earlier deletes are in flight, so they may be produced
+     * lazily, for instance from a listing. A blob that is leased is deleted
+     * under a lease of its own, like {@link #delete(String)} does.
+     *
+     * @param keys the keys of the blobs to delete.
+     * @param listener receives the outcome for every key, or null.
+     * @return the number of blobs deleted.
+     * @throws IOException if deleting any of the blobs failed. All the other
+     *         keys are still attempted.
+     */
+    public int delete(Iterable<String> keys, BulkDeleteListener listener)
+            throws IOException {
+        try {
+            if (checkContainer(ContainerAccessType.ReadThenWrite) == ContainerState.DoesntExist) {
+                // Container doesn't exist, no need to do anything
+                return 0;
+            }
+        } catch (StorageException e) {
+            throw new AzureException(e);
+        }
 
-    @Override
-    public void rename(String srcKey, String dstKey, boolean acquireLease,
-                       SelfRenewingLease existingLease) throws IOException {
-        rename(srcKey, dstKey, acquireLease, existingLease, true);
+        AtomicInteger deletedCount = new AtomicInteger();
+        AtomicInteger failedCount = new AtomicInteger();
+        AtomicReference<IOException> firstFailure = new AtomicReference<>();
+        try (BoundedTaskExecutor executor = new BoundedTaskExecutor(bulkDeleteThreads,
+                "AzureBlobBulkDeleteThread-")) {
+            for (String key : keys) {
+                executor.submit(() -> {
+                    boolean existed;
+                    try {
+                        existed = deleteWithLeaseFallback(key);
+                    } catch (IOException | RuntimeException e) {
+                        IOException failure = e instanceof IOException
+                                ? (IOException) e : new AzureException(e);
+                        failedCount.incrementAndGet();
+                        firstFailure.compareAndSet(null, failure);
+                        if (listener != null) {
+                            listener.failed(key, failure);
+                        }
+                        return;
+                    }
+                    if (existed) {
+                        deletedCount.incrementAndGet();
+                    }
+                    if (listener != null) {
+                        listener.deleted(key, existed);
+                    }
+                });
+            }
+            executor.awaitCompletion();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while deleting blobs");
+        }
+
+        if (failedCount.get() > 0) {
+            throw new AzureException(String.format("Failed to delete %d blobs.",
+                    failedCount.get()), firstFailure.get());
+        }
+        return deletedCount.get();
     }
 
-    @Override
-    public void rename(String srcKey, String dstKey, boolean acquireLease,
-                       SelfRenewingLease existingLease, boolean overwriteDestination) throws IOException {
+    /**
+     * Deletes a blob of a bulk delete, acquiring a lease on it if it is leased.
+     *
+     * @return false if the blob does not exist.
+     */
+    private boolean deleteWithLeaseFallback(String key) throws IOException {
+        CloudBlobWrapper blob;
+        try {
+            blob = getBlobReference(key);
+        } catch (StorageException | URISyntaxException e) {
+            throw new AzureException(e);
+        }
+        try {
+            safeDelete(blob, null);
+            return true;
+        } catch (StorageException e) {
+            if (NativeAzureFileSystemHelper.isFileNotFoundException(e)) {
+                return false;
+            }
+            if (!"LeaseIdMissing".equals(e.getErrorCode())) {
+                throw new AzureException(e);
+            }
+        }
+
+        // The lease is freed by safeDelete.
+        SelfRenewingLease lease = acquireLease(key);
+        try {
+            safeDelete(blob, lease);
+            return true;
+        } catch (StorageException e) {
+            if (NativeAzureFileSystemHelper.isFileNotFoundException(e)) {
+                return false;
+            }
+            throw new AzureException(e);
+        }
+    }
+
+    @Override
+    public void rename(String srcKey, String dstKey) throws IOException {
+        rename(srcKey, dstKey, false, null, true);
+    }
+
+    @Override
+    public void rename(String srcKey, String dstKey, boolean acquireLease,
+                       SelfRenewingLease existingLease) throws IOException {
+        rename(srcKey, dstKey, acquireLease, existingLease, true);
+    }
+
+    @Override
+    public void rename(String srcKey, String dstKey, boolean acquireLease,
+                       SelfRenewingLease existingLease, boolean overwriteDestination) throws IOException {
 
         LOG.debug("Moving {} to {}", srcKey, dstKey);
 
@@ -2870,70 +4259,26 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
             // Rename the source blob to the destination blob by copying it to
             // the destination blob then deleting it.
             //
-            // Copy blob operation in Azure storage is very costly. It will be highly
-            // likely throttled during Azure storage gc. Short term fix will be using
-            // a more intensive exponential retry policy when the cluster is getting
-            // throttled.
-            try {
-                dstBlob.startCopyFromBlob(srcBlob, null,
-                        getInstrumentedContext(), overwriteDestination);
-            } catch (StorageException se) {
-                if (se.getHttpStatusCode() == HttpURLConnection.HTTP_UNAVAILABLE) {
-                    int copyBlobMinBackoff = sessionConfiguration.getInt(
-                            KEY_COPYBLOB_MIN_BACKOFF_INTERVAL,
-                            DEFAULT_COPYBLOB_MIN_BACKOFF_INTERVAL);
-
-                    int copyBlobMaxBackoff = sessionConfiguration.getInt(
-                            KEY_COPYBLOB_MAX_BACKOFF_INTERVAL,
-                            DEFAULT_COPYBLOB_MAX_BACKOFF_INTERVAL);
-
-                    int copyBlobDeltaBackoff = sessionConfiguration.getInt(
-                            KEY_COPYBLOB_BACKOFF_INTERVAL,
-                            DEFAULT_COPYBLOB_BACKOFF_INTERVAL);
-
-                    int copyBlobMaxRetries = sessionConfiguration.getInt(
-                            KEY_COPYBLOB_MAX_IO_RETRIES,
-                            DEFAULT_COPYBLOB_MAX_RETRY_ATTEMPTS);
-
-                    BlobRequestOptions options = new BlobRequestOptions();
-                    options.setRetryPolicyFactory(new RetryExponentialRetry(
-                            copyBlobMinBackoff, copyBlobDeltaBackoff, copyBlobMaxBackoff,
-                            copyBlobMaxRetries));
-                    dstBlob.startCopyFromBlob(srcBlob, options,
-                            getInstrumentedContext(), overwriteDestination);
-                } else {
-                    throw se;
-                }
+            long copyStart = Time.monotonicNow();
+            RenameCopyMethod copyMethod = copyForRename(srcBlob, dstBlob,
+                    overwriteDestination);
+            if (copyMethod == RenameCopyMethod.ASYNC_COPY) {
+                waitForCopyToComplete(dstBlob, getInstrumentedContext());
             }
-            waitForCopyToComplete(dstBlob, getInstrumentedContext());
+            renameCopyCounts.incrementAndGet(copyMethod.ordinal());
+            LOG.debug("Copied {} to {} with {} in {} ms", srcKey, dstKey, copyMethod,
+                    Time.monotonicNow() - copyStart);
             safeDelete(srcBlob, lease);
         } catch (StorageException e) {
             if (e.getHttpStatusCode() == HttpURLConnection.HTTP_UNAVAILABLE) {
-                LOG.warn("Rename: CopyBlob: StorageException: ServerBusy: Retry complete, will attempt client side copy for page blob");
-                InputStream ipStream = null;
-                OutputStream opStream = null;
+                LOG.warn("Rename: CopyBlob: StorageException: ServerBusy: Retry complete, will attempt client side copy");
                 try {
-                    if (srcBlob.getProperties().getBlobType() == BlobType.PAGE_BLOB){
-                        ipStream = openInputStream(srcBlob, Optional.empty());
-                        opStream = openOutputStream(dstBlob);
-                        byte[] buffer = new byte[PageBlobFormatHelpers.PAGE_SIZE];
-                        int len;
-                        while ((len = ipStream.read(buffer)) != -1) {
-                            opStream.write(buffer, 0, len);
-                        }
-                        opStream.flush();
-                        opStream.close();
-                        ipStream.close();
-                    } else {
-                        throw new AzureException(e);
-                    }
+                    copyThroughClient(srcBlob, dstBlob, overwriteDestination);
+                    renameCopyCounts.incrementAndGet(RenameCopyMethod.CLIENT_COPY.ordinal());
                     safeDelete(srcBlob, lease);
-                } catch(StorageException se) {
+                } catch(StorageException | URISyntaxException se) {
                     LOG.warn("Rename: CopyBlob: StorageException: Failed");
                     throw new AzureException(se);
-                } finally {
-                    IOUtils.closeStream(ipStream);
-                    IOUtils.closeStream(opStream);
                 }
             } else {
                 throw new AzureException(e);
@@ -2944,25 +4289,752 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
         }
     }
 
-    private void waitForCopyToComplete(CloudBlobWrapper blob, OperationContext opContext){
-        boolean copyInProgress = true;
-        while (copyInProgress) {
+    /**
+     * Copies the source blob of a rename to the destination blob, or starts
+     * the copy.
+     *
+     * Block blobs are copied in the request, with a synchronous copy or with
+     * Put Block From URL, depending on their size and the configured
+     * thresholds, provided the service can be authorized to read the source.
+     * Other blobs, or if those requests fail or the source changes during
+     * Put Block From URL, are copied asynchronously.
+     *
+     * @return the copy method used. An {@link RenameCopyMethod#ASYNC_COPY}
+     *         may still be pending.
+     */
+    private RenameCopyMethod copyForRename(CloudBlobWrapper srcBlob,
+                                           CloudBlobWrapper dstBlob,
+                                           boolean overwriteDestination)
+            throws StorageException, URISyntaxException, IOException {
+        BlobProperties properties = srcBlob.getProperties();
+        if (properties != null && properties.getBlobType() == BlobType.BLOCK_BLOB
+                && srcBlob.getBlob() != null && dstBlob.getBlob() instanceof CloudBlockBlob) {
+            long length = properties.getLength();
+            boolean syncCopy = length <= renameSyncCopyThreshold;
+            boolean putBlocks = !syncCopy && length <= renamePutBlockFromUrlThreshold;
+            URI sourceUri = syncCopy || putBlocks
+                    ? getCopySourceUri(srcBlob.getBlob()) : null;
+            if (sourceUri != null) {
+                CloudBlockBlob destination = (CloudBlockBlob) dstBlob.getBlob();
+                AccessCondition dstAccessCondition = overwriteDestination
+                        ? null : AccessCondition.generateIfNotExistsCondition();
+                try {
+                    if (syncCopy) {
+                        destination.startCopy(new CloudBlockBlob(sourceUri), null, true,
+                                null, dstAccessCondition, null, getInstrumentedContext());
+                        return RenameCopyMethod.SYNC_COPY;
+                    }
+                    if (copyBlocksFromUrl(sourceUri, srcBlob.getBlob(), destination,
+                            length, dstAccessCondition)) {
+                        return RenameCopyMethod.PUT_BLOCK_FROM_URL;
+                    }
+                    LOG.debug("{} changed while its blocks were copied, "
+                            + "copying it asynchronously", srcBlob.getUri());
+                } catch (StorageException e) {
+                    LOG.debug("Copying {} in the request failed, copying it asynchronously",
+                            srcBlob.getUri(), e);
+                }
+            }
+        }
+        startCopy(srcBlob, dstBlob, overwriteDestination);
+        return RenameCopyMethod.ASYNC_COPY;
+    }
+
+    /**
+     * Returns a URI through which the service can read the given blob as a
+     * copy source: with a short read-only SAS when the account key is known,
+     * or with the SAS of the session. Returns null for other credentials.
+     */
+    private URI getCopySourceUri(CloudBlob source)
+            throws StorageException, URISyntaxException {
+        StorageCredentials credentials = source.getServiceClient().getCredentials();
+        if (credentials instanceof StorageCredentialsAccountAndKey) {
+            SharedAccessBlobPolicy policy = new SharedAccessBlobPolicy();
+            policy.setPermissions(EnumSet.of(SharedAccessBlobPermissions.READ));
+            policy.setSharedAccessExpiryTime(
+                    new Date(System.currentTimeMillis() + COPY_SOURCE_SAS_VALIDITY_MS));
             try {
-                blob.downloadAttributes(opContext);
+                return new URI(source.getUri() + "?"
+                        + source.generateSharedAccessSignature(policy, null));
+            } catch (InvalidKeyException e) {
+                LOG.debug("Cannot sign a copy source URI for {}", source.getUri(), e);
+                return null;
             }
-            catch (StorageException se){
+        }
+        if (credentials instanceof StorageCredentialsSharedAccessSignature) {
+            return credentials.transformUri(source.getUri());
+        }
+        return null;
+    }
+
+    /**
+     * Copies a block blob by staging its ranges as blocks of the destination
+     * with Put Block From URL, on {@link #concurrentWrites} threads, and
+     * committing them with the metadata and properties of the source.
+     *
+     * The ranges are read separately, so the blocks are only committed if the
+     * ETag of the source is still the one it had before the copy.
+     *
+     * @return whether the blob was copied; false if the source changed.
+     */
+    private boolean copyBlocksFromUrl(URI sourceUri, CloudBlob source,
+                                      CloudBlockBlob destination, long length,
+                                      AccessCondition dstAccessCondition)
+            throws StorageException, IOException {
+        String etag = source.getProperties().getEtag();
+        int blockCount = (int) ((length + RENAME_BLOCK_SIZE - 1) / RENAME_BLOCK_SIZE);
+        List<BlockEntry> blocks = new ArrayList<>(blockCount);
+        AtomicReference<StorageException> failure = new AtomicReference<>();
+        try (BoundedTaskExecutor executor = new BoundedTaskExecutor(
+                Math.min(concurrentWrites, blockCount), "AzureBlobRenameBlockThread-")) {
+            for (int i = 0; i < blockCount; i++) {
+                String blockId = copyBlockId(i);
+                long offset = i * RENAME_BLOCK_SIZE;
+                long blockLength = Math.min(RENAME_BLOCK_SIZE, length - offset);
+                blocks.add(new BlockEntry(blockId));
+                executor.submit(() -> {
+                    if (failure.get() != null) {
+                        return;
+                    }
+                    try {
+                        destination.createBlockFromURI(blockId, sourceUri, offset,
+                                blockLength, null, null, null, getInstrumentedContext());
+                    } catch (StorageException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
             }
+            executor.awaitCompletion();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while copying " + source.getUri());
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
 
-            // test for null because mocked filesystem doesn't know about copystates yet.
-            copyInProgress = (blob.getCopyState() != null && blob.getCopyState().getStatus() == CopyStatus.PENDING);
-            if (copyInProgress) {
+        source.downloadAttributes(null, null, getInstrumentedContext());
+        if (etag == null || !etag.equals(source.getProperties().getEtag())) {
+            return false;
+        }
+        copyBlobAttributes(source, destination);
+        destination.commitBlockList(blocks, dstAccessCondition, null,
+                getInstrumentedContext());
+        return true;
+    }
+
+    /**
+     * Returns the ID of the block at the given index of a copied blob. Block
+     * IDs of a blob must all have the same length.
+     */
+    private static String copyBlockId(int index) {
+        return Base64.getEncoder().encodeToString(
+                String.format("%08d", index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sets the metadata and content properties of the source blob on the
+     * destination blob, to be sent when the destination is created or
+     * committed.
+     */
+    private static void copyBlobAttributes(CloudBlob source, CloudBlob destination) {
+        destination.getMetadata().putAll(source.getMetadata());
+        BlobProperties sourceProperties = source.getProperties();
+        BlobProperties properties = destination.getProperties();
+        properties.setCacheControl(sourceProperties.getCacheControl());
+        properties.setContentDisposition(sourceProperties.getContentDisposition());
+        properties.setContentEncoding(sourceProperties.getContentEncoding());
+        properties.setContentLanguage(sourceProperties.getContentLanguage());
+        properties.setContentMD5(sourceProperties.getContentMD5());
+        properties.setContentType(sourceProperties.getContentType());
+    }
+
+    /**
+     * Copies a blob through the client, for renames whose server-side copy
+     * stays throttled.
+     *
+     * The source is read in ranges of {@link #CLIENT_COPY_RANGE_SIZE} on
+     * {@link #concurrentWrites} threads, each with its own buffer, and every
+     * range is written as a block or as pages of the destination as soon as
+     * it is read. Block blobs are then committed. Page blobs are copied page
+     * for page, page headers included, and ranges that were never written are
+     * skipped.
+     */
+    private void copyThroughClient(CloudBlobWrapper srcBlob, CloudBlobWrapper dstBlob,
+                                   boolean overwriteDestination)
+            throws StorageException, URISyntaxException, IOException {
+        CloudBlob source = srcBlob.getBlob();
+        BlobProperties sourceProperties = source.getProperties();
+        long length = sourceProperties.getLength();
+        AccessCondition dstAccessCondition = overwriteDestination
+                ? null : AccessCondition.generateIfNotExistsCondition();
+        BlobRequestOptions uploadOptions = getUploadOptions();
+
+        if (sourceProperties.getBlobType() == BlobType.PAGE_BLOB) {
+            CloudPageBlob destination = dstBlob.getBlob().getContainer()
+                    .getPageBlobReference(dstBlob.getBlob().getName());
+            copyBlobAttributes(source, destination);
+            destination.create(length, dstAccessCondition, uploadOptions,
+                    getInstrumentedContext());
+            try {
+                copyRangesThroughClient(source, length, CLIENT_COPY_RANGE_SIZE,
+                        (index, offset, buffer, count) -> {
+                            if (!isZeroFilled(buffer, count)) {
+                                destination.uploadPages(
+                                        new ByteArrayInputStream(buffer, 0, count), offset,
+                                        count, null, uploadOptions, getInstrumentedContext());
+                            }
+                        });
+            } catch (StorageException | IOException e) {
+                // Pages are written in place, so a partial copy would be
+                // left as the destination.
                 try {
-                    Thread.sleep(1000);
+                    destination.deleteIfExists(DeleteSnapshotsOption.NONE, null, null,
+                            getInstrumentedContext());
+                } catch (StorageException deleteException) {
+                    LOG.warn("Failed to delete the partial copy {}", destination.getUri(),
+                            deleteException);
                 }
-                catch (InterruptedException ie){
-                    //ignore
+                throw e;
+            }
+        } else {
+            CloudBlockBlob destination = dstBlob.getBlob().getContainer()
+                    .getBlockBlobReference(dstBlob.getBlob().getName());
+            // Grow the ranges of very large blobs to stay within the number of
+            // blocks a blob can have.
+            int rangeSize = (int) Math.max(CLIENT_COPY_RANGE_SIZE,
+                    (length + MAX_BLOCK_COUNT - 1) / MAX_BLOCK_COUNT);
+            int blockCount = (int) ((length + rangeSize - 1) / rangeSize);
+            List<BlockEntry> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                blocks.add(new BlockEntry(copyBlockId(i)));
+            }
+            copyRangesThroughClient(source, length, rangeSize,
+                    (index, offset, buffer, count) -> destination.uploadBlock(
+                            copyBlockId(index), new ByteArrayInputStream(buffer, 0, count),
+                            count, null, uploadOptions, getInstrumentedContext()));
+            copyBlobAttributes(source, destination);
+            destination.commitBlockList(blocks, dstAccessCondition, uploadOptions,
+                    getInstrumentedContext());
+        }
+    }
+
+    /**
+     * Reads the given blob in ranges on {@link #concurrentWrites} threads and
+     * passes each range to the writer, on the thread that read it. Every range
+     * is read from the version of the blob whose properties were loaded, so
+     * that a blob changed meanwhile fails the copy instead of mixing versions.
+     */
+    private void copyRangesThroughClient(CloudBlob source, long length, int rangeSize,
+                                         CopiedRangeWriter writer)
+            throws StorageException, IOException {
+        int rangeCount = (int) ((length + rangeSize - 1) / rangeSize);
+        BlobRequestOptions downloadOptions = getDownloadOptions();
+        // Buffers are reused by the ranges that run next, so that at most one
+        // buffer per thread is allocated.
+        Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        String etag = source.getProperties().getEtag();
+        try (BoundedTaskExecutor executor = new BoundedTaskExecutor(
+                Math.min(concurrentWrites, rangeCount), "AzureBlobRenameCopyThread-")) {
+            for (int i = 0; i < rangeCount; i++) {
+                int index = i;
+                long offset = (long) i * rangeSize;
+                int count = (int) Math.min(rangeSize, length - offset);
+                executor.submit(() -> {
+                    if (failure.get() != null) {
+                        return;
+                    }
+                    byte[] buffer = buffers.poll();
+                    if (buffer == null) {
+                        buffer = new byte[rangeSize];
+                    }
+                    try {
+                        AccessCondition sourceCondition = etag == null
+                                ? null : AccessCondition.generateIfMatchCondition(etag);
+                        int read = source.downloadRangeToByteArray(offset, (long) count,
+                                buffer, 0, sourceCondition, downloadOptions,
+                                getInstrumentedContext());
+                        if (read != count) {
+                            throw new IOException(String.format(
+                                    "Read %d bytes instead of %d at offset %d of %s",
+                                    read, count, offset, source.getUri()));
+                        }
+                        writer.write(index, offset, buffer, count);
+                    } catch (StorageException | IOException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        buffers.add(buffer);
+                    }
+                });
+            }
+            executor.awaitCompletion();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while copying " + source.getUri());
+        }
+        Exception e = failure.get();
+        if (e instanceof StorageException) {
+            throw (StorageException) e;
+        } else if (e != null) {
+            throw (IOException) e;
+        }
+    }
+
+    private static boolean isZeroFilled(byte[] buffer, int count) {
+        for (int i = 0; i < count; i++) {
+            if (buffer[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a range read by a copy through the client to the destination.
+     */
+    private interface CopiedRangeWriter {
+        void write(int index, long offset, byte[] buffer, int count)
+                throws StorageException, IOException;
+    }
+
+    /**
+     * Starts a server-side copy of the source blob to the destination blob.
+     *
+     * Copy blob operation in Azure storage is very costly. It will be highly
+     * likely throttled during Azure storage gc. Short term fix will be using
+     * a more intensive exponential retry policy when the cluster is getting
+     * throttled.
+     */
+    private void startCopy(CloudBlobWrapper srcBlob, CloudBlobWrapper dstBlob,
+                           boolean overwriteDestination)
+            throws StorageException, URISyntaxException {
+        try {
+            dstBlob.startCopyFromBlob(srcBlob, null,
+                    getInstrumentedContext(), overwriteDestination);
+        } catch (StorageException se) {
+            if (se.getHttpStatusCode() == HttpURLConnection.HTTP_UNAVAILABLE) {
+                int copyBlobMinBackoff = sessionConfiguration.getInt(
+                        KEY_COPYBLOB_MIN_BACKOFF_INTERVAL,
+                        DEFAULT_COPYBLOB_MIN_BACKOFF_INTERVAL);
+
+                int copyBlobMaxBackoff = sessionConfiguration.getInt(
+                        KEY_COPYBLOB_MAX_BACKOFF_INTERVAL,
+                        DEFAULT_COPYBLOB_MAX_BACKOFF_INTERVAL);
+
+                int copyBlobDeltaBackoff = sessionConfiguration.getInt(
+                        KEY_COPYBLOB_BACKOFF_INTERVAL,
+                        DEFAULT_COPYBLOB_BACKOFF_INTERVAL);
+
+                int copyBlobMaxRetries = sessionConfiguration.getInt(
+                        KEY_COPYBLOB_MAX_IO_RETRIES,
+                        DEFAULT_COPYBLOB_MAX_RETRY_ATTEMPTS);
+
+                BlobRequestOptions options = new BlobRequestOptions();
+                options.setRetryPolicyFactory(new RetryExponentialRetry(
+                        copyBlobMinBackoff, copyBlobDeltaBackoff, copyBlobMaxBackoff,
+                        copyBlobMaxRetries));
+                dstBlob.startCopyFromBlob(srcBlob, options,
+                        getInstrumentedContext(), overwriteDestination);
+            } else {
+                throw se;
+            }
+        }
+    }
+
+    /**
+     * Renames many blobs, copying them concurrently on the threads configured
+     * by {@link #KEY_BULK_RENAME_THREADS}.
+     *
+     * Copies are started for all the pairs first. Copies that do not complete
+     * synchronously are then polled together, and the source of every
+     * completed copy is deleted. Each pair is renamed like
+     * {@link #rename(String, String)}: a source is only deleted once its copy
+     * has succeeded, and a leased source is leased by the rename before it is
+     * deleted. Sources in an atomic rename directory are only deleted once
+     * every copy of the bulk rename has succeeded, so that a failed bulk
+     * rename of such a directory leaves all its sources for the redo of the
+     * rename.
+     *
+     * @param renames the destination key of each source key.
+     * @param listener receives the outcome of each pair, may be null.
+     * @return the number of blobs renamed.
+     * @throws IOException if any of the blobs could not be renamed, after all
+     *         the others were.
+     */
+    public int rename(Map<String, String> renames, BulkRenameListener listener)
+            throws IOException {
+        try {
+            checkContainer(ContainerAccessType.ReadThenWrite);
+        } catch (StorageException e) {
+            throw new AzureException(e);
+        }
+
+        BulkRenameOutcome outcome = new BulkRenameOutcome(listener);
+        Queue<PendingRename> pendingCopies = new ConcurrentLinkedQueue<>();
+        Queue<PendingRename> atomicRenames = new ConcurrentLinkedQueue<>();
+        try {
+            try (BoundedTaskExecutor executor = new BoundedTaskExecutor(bulkRenameThreads,
+                    "AzureBlobBulkRenameThread-")) {
+                for (Map.Entry<String, String> pair : renames.entrySet()) {
+                    PendingRename rename = new PendingRename(pair.getKey(), pair.getValue());
+                    executor.submit(() -> {
+                        try {
+                            if (startRenameCopy(rename)) {
+                                pendingCopies.add(rename);
+                            } else if (isAtomicRenameKey(rename.srcKey)) {
+                                atomicRenames.add(rename);
+                            } else {
+                                deleteRenamedSource(rename, outcome);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            outcome.failed(rename, e, true);
+                        }
+                    });
                 }
+                executor.awaitCompletion();
             }
+
+            try (BoundedTaskExecutor executor = new BoundedTaskExecutor(bulkRenameThreads,
+                    "AzureBlobBulkRenameThread-")) {
+                waitForRenameCopies(new ArrayList<>(pendingCopies), outcome, executor, rename -> {
+                    if (isAtomicRenameKey(rename.srcKey)) {
+                        atomicRenames.add(rename);
+                    } else {
+                        executor.submit(() -> deleteRenamedSource(rename, outcome));
+                    }
+                });
+                for (PendingRename rename : atomicRenames) {
+                    if (outcome.copyFailed) {
+                        outcome.failed(rename, new AzureException(String.format(
+                                "Source blob %s was kept because another copy of the rename failed.",
+                                rename.srcKey)), false);
+                    } else {
+                        executor.submit(() -> deleteRenamedSource(rename, outcome));
+                    }
+                }
+                executor.awaitCompletion();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while renaming blobs");
+        }
+
+        if (outcome.failedCount.get() > 0) {
+            throw new AzureException(String.format("Failed to rename %d blobs.",
+                    outcome.failedCount.get()), outcome.firstFailure.get());
+        }
+        return outcome.renamedCount.get();
+    }
+
+    /**
+     * Starts the copy of a pair of a bulk rename.
+     *
+     * @return true if the copy is still pending.
+     */
+    private boolean startRenameCopy(PendingRename rename) throws IOException {
+        try {
+            rename.srcBlob = getBlobReference(rename.srcKey);
+            rename.dstBlob = getBlobReference(rename.dstKey);
+            startCopy(rename.srcBlob, rename.dstBlob, true);
+        } catch (StorageException e) {
+            if (NativeAzureFileSystemHelper.isFileNotFoundException(e)) {
+                throw new AzureException("Source blob " + rename.srcKey + " does not exist.");
+            }
+            throw new AzureException(e);
+        } catch (URISyntaxException e) {
+            throw new AzureException(e);
+        }
+        CopyState copyState = rename.dstBlob.getCopyState();
+        if (copyState == null || copyState.getStatus() != CopyStatus.PENDING) {
+            checkCopySucceeded(rename.dstBlob, copyState);
+            return false;
+        }
+        rename.lastPoll = Time.monotonicNow();
+        rename.lastBytesCopied = bytesCopied(copyState);
+        return true;
+    }
+
+    /**
+     * Polls the pending copies of a bulk rename together until they all
+     * completed, like {@link #waitForCopyToComplete}, and passes each
+     * successful copy to the given consumer. The copies of each round are
+     * polled on the given executor.
+     */
+    private void waitForRenameCopies(List<PendingRename> copies,
+                                     BulkRenameOutcome outcome,
+                                     BoundedTaskExecutor executor,
+                                     CopiedRenameConsumer onCopied)
+            throws InterruptedException {
+        if (copies.isEmpty()) {
+            return;
+        }
+        long start = Time.monotonicNow();
+        long deadline = start + copyBlobWaitTimeout;
+        long interval = COPYBLOB_POLL_MIN_INTERVAL;
+        int waitedCopies = copies.size();
+        try {
+            while (!copies.isEmpty()) {
+                long now = Time.monotonicNow();
+                if (now >= deadline) {
+                    for (PendingRename rename : copies) {
+                        outcome.failed(rename, new AzureException(String.format(
+                                "Timed out after %d ms waiting for the copy to %s to complete",
+                                now - start, rename.dstBlob.getUri())), true);
+                    }
+                    return;
+                }
+                Thread.sleep(Math.min(interval, deadline - now));
+
+                CountDownLatch polled = new CountDownLatch(copies.size());
+                for (PendingRename rename : copies) {
+                    executor.submit(() -> {
+                        try {
+                            rename.dstBlob.downloadAttributes(getInstrumentedContext());
+                            rename.pollFailure = null;
+                        } catch (StorageException se) {
+                            rename.pollFailure = se;
+                        } finally {
+                            polled.countDown();
+                        }
+                    });
+                }
+                polled.await();
+
+                // The shortest interval until one of the copies should be
+                // polled again.
+                long nextInterval = Long.MAX_VALUE;
+                now = Time.monotonicNow();
+                Iterator<PendingRename> iterator = copies.iterator();
+                while (iterator.hasNext()) {
+                    PendingRename rename = iterator.next();
+                    if (rename.pollFailure != null) {
+                        if (++rename.pollFailures >= COPYBLOB_POLL_MAX_FAILURES) {
+                            iterator.remove();
+                            outcome.failed(rename, new AzureException(String.format(
+                                    "Failed to get the state of the copy to %s",
+                                    rename.dstBlob.getUri()), rename.pollFailure), true);
+                        }
+                        continue;
+                    }
+                    rename.pollFailures = 0;
+
+                    CopyState copyState = rename.dstBlob.getCopyState();
+                    if (copyState == null || copyState.getStatus() != CopyStatus.PENDING) {
+                        iterator.remove();
+                        try {
+                            checkCopySucceeded(rename.dstBlob, copyState);
+                        } catch (AzureException e) {
+                            outcome.failed(rename, e, true);
+                            continue;
+                        }
+                        onCopied.accept(rename);
+                        continue;
+                    }
+
+                    nextInterval = Math.min(nextInterval, nextCopyPollInterval(interval,
+                            copyState, rename.lastBytesCopied, now - rename.lastPoll));
+                    rename.lastPoll = now;
+                    rename.lastBytesCopied = bytesCopied(copyState);
+                }
+                interval = nextInterval == Long.MAX_VALUE
+                        ? Math.min(interval * 2, copyBlobPollMaxInterval) : nextInterval;
+            }
+        } finally {
+            long waited = Time.monotonicNow() - start;
+            copyWaitTimeMs.addAndGet(waited);
+            copyWaitCount.addAndGet(waitedCopies);
+            LOG.debug("Waited {} ms for {} copies of a bulk rename", waited, waitedCopies);
+        }
+    }
+
+    /**
+     * Deletes the source of a pair of a bulk rename whose copy succeeded.
+     */
+    private void deleteRenamedSource(PendingRename rename, BulkRenameOutcome outcome) {
+        try {
+            deleteWithLeaseFallback(rename.srcKey);
+        } catch (IOException | RuntimeException e) {
+            outcome.failed(rename, e, false);
+            return;
+        }
+        outcome.renamed(rename);
+    }
+
+    /**
+     * A pair of a bulk rename and the state of its copy.
+     */
+    private static final class PendingRename {
+        private final String srcKey;
+        private final String dstKey;
+        private CloudBlobWrapper srcBlob;
+        private CloudBlobWrapper dstBlob;
+        private long lastPoll;
+        private long lastBytesCopied;
+        private int pollFailures;
+        // The failure of the last poll of the copy, or null.
+        private volatile StorageException pollFailure;
+
+        PendingRename(String srcKey, String dstKey) {
+            this.srcKey = srcKey;
+            this.dstKey = dstKey;
+        }
+    }
+
+    /**
+     * Receives the pairs of a bulk rename whose pending copy succeeded.
+     */
+    private interface CopiedRenameConsumer {
+        void accept(PendingRename rename) throws InterruptedException;
+    }
+
+    /**
+     * Counts the outcomes of a bulk rename and reports them to its listener.
+     */
+    private static final class BulkRenameOutcome {
+        private final BulkRenameListener listener;
+        private final AtomicInteger renamedCount = new AtomicInteger();
+        private final AtomicInteger failedCount = new AtomicInteger();
+        private final AtomicReference<IOException> firstFailure = new AtomicReference<>();
+        // Set once a copy failed, so that atomic rename sources are kept.
+        private volatile boolean copyFailed;
+
+        BulkRenameOutcome(BulkRenameListener listener) {
+            this.listener = listener;
+        }
+
+        void renamed(PendingRename rename) {
+            renamedCount.incrementAndGet();
+            if (listener != null) {
+                listener.renamed(rename.srcKey, rename.dstKey);
+            }
+        }
+
+        void failed(PendingRename rename, Exception e, boolean copy) {
+            IOException failure = e instanceof IOException
+                    ? (IOException) e : new AzureException(e);
+            if (copy) {
+                copyFailed = true;
+            }
+            failedCount.incrementAndGet();
+            firstFailure.compareAndSet(null, failure);
+            if (listener != null) {
+                listener.failed(rename.srcKey, rename.dstKey, failure);
+            }
+        }
+    }
+
+    /**
+     * Waits for the server-side copy to the given blob to complete.
+     *
+     * The copy state is the one returned when the copy was started, so a copy
+     * that completed synchronously, as copies within an account usually do,
+     * returns without another request. A pending copy is polled at intervals
+     * that double from {@link #COPYBLOB_POLL_MIN_INTERVAL}, or that follow the
+     * estimated remaining time once the copy reports progress, up to the
+     * configured maximum.
+     *
+     * @throws AzureException if the copy failed or was aborted, if polling
+     *         failed repeatedly, or if the copy did not complete in time.
+     */
+    private void waitForCopyToComplete(CloudBlobWrapper blob, OperationContext opContext)
+            throws IOException {
+        // test for null because mocked filesystem doesn't know about copystates yet.
+        CopyState copyState = blob.getCopyState();
+        if (copyState == null || copyState.getStatus() != CopyStatus.PENDING) {
+            checkCopySucceeded(blob, copyState);
+            return;
+        }
+
+        long start = Time.monotonicNow();
+        long deadline = start + copyBlobWaitTimeout;
+        long interval = COPYBLOB_POLL_MIN_INTERVAL;
+        long lastPoll = start;
+        long lastBytesCopied = bytesCopied(copyState);
+        int failures = 0;
+        try {
+            while (true) {
+                long now = Time.monotonicNow();
+                if (now >= deadline) {
+                    throw new AzureException(String.format(
+                            "Timed out after %d ms waiting for the copy to %s to complete",
+                            now - start, blob.getUri()));
+                }
+                Thread.sleep(Math.min(interval, deadline - now));
+
+                try {
+                    blob.downloadAttributes(opContext);
+                    failures = 0;
+                } catch (StorageException se) {
+                    if (++failures >= COPYBLOB_POLL_MAX_FAILURES) {
+                        throw new AzureException(String.format(
+                                "Failed to get the state of the copy to %s", blob.getUri()), se);
+                    }
+                    LOG.debug("Failed to get the state of the copy to {}", blob.getUri(), se);
+                    interval = Math.min(interval * 2, copyBlobPollMaxInterval);
+                    continue;
+                }
+
+                copyState = blob.getCopyState();
+                if (copyState == null || copyState.getStatus() != CopyStatus.PENDING) {
+                    checkCopySucceeded(blob, copyState);
+                    return;
+                }
+
+                now = Time.monotonicNow();
+                interval = nextCopyPollInterval(interval, copyState, lastBytesCopied,
+                        now - lastPoll);
+                lastPoll = now;
+                lastBytesCopied = bytesCopied(copyState);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException) new InterruptedIOException(
+                    "Interrupted waiting for the copy to " + blob.getUri()).initCause(e);
+        } finally {
+            long waited = Time.monotonicNow() - start;
+            copyWaitTimeMs.addAndGet(waited);
+            copyWaitCount.incrementAndGet();
+            LOG.debug("Waited {} ms for the copy to {}", waited, blob.getUri());
+        }
+    }
+
+    /**
+     * Returns the interval until the next poll of a pending copy: around when
+     * the copy should complete at the rate it progressed at since the last
+     * poll, or twice the last interval if it did not progress, within the
+     * configured bounds.
+     *
+     * @param interval the last interval, in milliseconds.
+     * @param copyState the state of the copy just polled.
+     * @param lastBytesCopied the bytes copied at the previous poll.
+     * @param elapsedMs the time since the previous poll, in milliseconds.
+     */
+    private long nextCopyPollInterval(long interval, CopyState copyState,
+                                      long lastBytesCopied, long elapsedMs) {
+        long bytesCopied = bytesCopied(copyState);
+        Long totalBytes = copyState.getTotalBytes();
+        if (bytesCopied > lastBytesCopied && totalBytes != null && elapsedMs > 0) {
+            double bytesPerMs = (double) (bytesCopied - lastBytesCopied) / elapsedMs;
+            interval = (long) ((totalBytes - bytesCopied) / bytesPerMs);
+        } else {
+            interval *= 2;
+        }
+        return Math.max(COPYBLOB_POLL_MIN_INTERVAL,
+                Math.min(interval, copyBlobPollMaxInterval));
+    }
+
+    private static long bytesCopied(CopyState copyState) {
+        Long bytesCopied = copyState.getBytesCopied();
+        return bytesCopied == null ? 0 : bytesCopied;
+    }
+
+    private static void checkCopySucceeded(CloudBlobWrapper blob, CopyState copyState)
+            throws AzureException {
+        if (copyState != null && (copyState.getStatus() == CopyStatus.FAILED
+                || copyState.getStatus() == CopyStatus.ABORTED)) {
+            throw new AzureException(String.format("Copy to %s ended with status %s: %s",
+                    blob.getUri(), copyState.getStatus(), copyState.getStatusDescription()));
         }
     }
 
@@ -3033,9 +5105,13 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
             }
             // Get all blob items with the given prefix from the container and delete
             // them.
-            Iterable<ListBlobItem> objects = listRootBlobs(prefix, false, false);
+            Iterable<ListBlobItem> objects = listRootBlobs(prefix, false, true);
+            if (purgeThreads > 1 || purgeBatchEnabled) {
+                purgeConcurrently(objects);
+                return;
+            }
             for (ListBlobItem blobItem : objects) {
-                ((CloudBlob) blobItem).delete(DeleteSnapshotsOption.NONE, null, null,
+                toCloudBlob(blobItem).delete(DeleteSnapshotsOption.NONE, null, null,
                         getInstrumentedContext());
             }
         } catch (Exception e) {
@@ -3045,6 +5121,122 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
         }
     }
 
+    /**
+     * Returns the storage client blob of a listed blob.
+     */
+    private static CloudBlob toCloudBlob(ListBlobItem blobItem) {
+        if (blobItem instanceof CloudBlobWrapper) {
+            return ((CloudBlobWrapper) blobItem).getBlob();
+        }
+        return (CloudBlob) blobItem;
+    }
+
+    /**
+     * Deletes the listed blobs in chunks of up to BLOB_BATCH_MAX_SIZE blobs on
+     * the purge threads. The listing is consumed while earlier chunks are being
+     * deleted. A chunk is deleted with one Blob Batch request if enabled;
+     * deletes that fail within a batch are retried one by one.
+     */
+    private void purgeConcurrently(Iterable<ListBlobItem> objects)
+            throws AzureException, InterruptedException {
+        AtomicBoolean useBatch = new AtomicBoolean(purgeBatchEnabled
+                && !isAnonymousCredentials && !isStorageEmulator);
+        Queue<Exception> failures = new ConcurrentLinkedQueue<>();
+        try (BoundedTaskExecutor executor = new BoundedTaskExecutor(purgeThreads,
+                "AzureBlobPurgeThread-")) {
+            List<CloudBlob> chunk = new ArrayList<>(BLOB_BATCH_MAX_SIZE);
+            for (ListBlobItem blobItem : objects) {
+                if (!failures.isEmpty()) {
+                    break;
+                }
+                chunk.add(toCloudBlob(blobItem));
+                if (chunk.size() == BLOB_BATCH_MAX_SIZE) {
+                    submitPurgeChunk(executor, chunk, useBatch, failures);
+                    chunk = new ArrayList<>(BLOB_BATCH_MAX_SIZE);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                submitPurgeChunk(executor, chunk, useBatch, failures);
+            }
+            executor.awaitCompletion();
+        }
+
+        if (!failures.isEmpty()) {
+            throw new AzureException(String.format(
+                    "Failed to delete %d blobs while purging.", failures.size()),
+                    failures.peek());
+        }
+    }
+
+    private void submitPurgeChunk(BoundedTaskExecutor executor,
+                                  List<CloudBlob> chunk, AtomicBoolean useBatch,
+                                  Queue<Exception> failures) throws InterruptedException {
+        executor.submit(() -> {
+            try {
+                deletePurgeChunk(chunk, useBatch, failures);
+            } catch (RuntimeException e) {
+                failures.add(e);
+            }
+        });
+    }
+
+    private void deletePurgeChunk(List<CloudBlob> chunk, AtomicBoolean useBatch,
+                                  Queue<Exception> failures) {
+        List<CloudBlob> remaining = chunk;
+        if (useBatch.get() && chunk.size() > 1) {
+            try {
+                remaining = deleteBlobBatch(chunk);
+            } catch (StorageException e) {
+                // The batch as a whole was rejected. A client error means that
+                // batches are not supported here, for instance with the
+                // credentials in use, so the rest is deleted one by one.
+                if (e.getHttpStatusCode() >= 400 && e.getHttpStatusCode() < 500
+                        && useBatch.compareAndSet(true, false)) {
+                    LOG.debug("Blob batch delete rejected, deleting blobs one by one", e);
+                }
+            }
+        }
+        for (CloudBlob blob : remaining) {
+            try {
+                blob.delete(DeleteSnapshotsOption.NONE, null, null,
+                        getInstrumentedContext());
+            } catch (StorageException e) {
+                // A blob that is gone already needs no delete.
+                if (!NativeAzureFileSystemHelper.isFileNotFoundException(e)) {
+                    LOG.debug("Failed to delete {} while purging", blob.getName(), e);
+                    failures.add(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the given blobs with one Blob Batch request.
+     *
+     * @return the blobs whose delete failed and should be retried.
+     * @throws StorageException if the batch request as a whole failed.
+     */
+    private List<CloudBlob> deleteBlobBatch(List<CloudBlob> blobs)
+            throws StorageException {
+        BlobDeleteBatchOperation batch = new BlobDeleteBatchOperation();
+        for (CloudBlob blob : blobs) {
+            batch.addSubOperation(blob, DeleteSnapshotsOption.NONE, null, null);
+        }
+        try {
+            blobs.get(0).getServiceClient().executeBatch(batch, null,
+                    getInstrumentedContext());
+            return new ArrayList<>();
+        } catch (BatchException e) {
+            List<CloudBlob> failed = new ArrayList<>();
+            for (Map.Entry<?, StorageException> failure : e.getExceptions().entrySet()) {
+                if (!NativeAzureFileSystemHelper.isFileNotFoundException(failure.getValue())) {
+                    failed.add((CloudBlob) failure.getKey());
+                }
+            }
+            return failed;
+        }
+    }
+
     /**
      * Get a lease on the blob identified by key. This lease will be renewed
      * indefinitely by a background thread.
@@ -3103,6 +5295,21 @@ public class AzureNativeFileSystemStore implements NativeFileSystemStore {
             bandwidthGaugeUpdater.close();
             bandwidthGaugeUpdater = null;
         }
+        synchronized (listingPoolLock) {
+            if (listingPool != null) {
+                listingPool.shutdownNow();
+                listingPool = null;
+            }
+        }
+        synchronized (pageBlobSizeExecutorLock) {
+            if (pageBlobSizeExecutor != null) {
+                pageBlobSizeExecutor.shutdownNow();
+                pageBlobSizeExecutor = null;
+            }
+        }
+        if (vectoredReads != null) {
+            vectoredReads.close();
+        }
     }
 
     // Finalizer to ensure complete shutdown
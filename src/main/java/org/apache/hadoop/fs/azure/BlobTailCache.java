@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * Keeps the last bytes of recently read blobs, so that the footers of files
+ * such as Parquet or ORC, which readers fetch every time they open the file,
+ * are downloaded once.
+ *
+ * Entries are validated by the ETag and length of the blob, which the
+ * streams learn when they are opened, so a blob that was overwritten is
+ * never served from the cache. The least recently used entries are evicted
+ * beyond a number of entries or a total size.
+ */
+@InterfaceAudience.Private
+final class BlobTailCache {
+    private final int tailSize;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Tail> tails =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param tailSize the number of bytes kept from the end of each blob.
+     * @param maxEntries the number of blobs whose tail is kept at most.
+     * @param maxBytes the size of all the tails kept at most.
+     */
+    BlobTailCache(int tailSize, int maxEntries, long maxBytes) {
+        this.tailSize = tailSize;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the number of bytes kept from the end of each blob.
+     */
+    int getTailSize() {
+        return tailSize;
+    }
+
+    /**
+     * Returns the cached tail of the given version of a blob.
+     *
+     * @param uri the URI of the blob.
+     * @param etag the ETag of the blob.
+     * @param length the length of the blob.
+     * @return the last min(tail size, length) bytes of the blob, or null if
+     *          they are not cached.
+     */
+    synchronized byte[] get(String uri, String etag, long length) {
+        Tail tail = tails.get(uri);
+        if (tail == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (!tail.etag.equals(etag) || tail.blobLength != length) {
+            remove(uri);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return tail.data;
+    }
+
+    /**
+     * Caches the tail of the given version of a blob, evicting the least
+     * recently used tails to make room.
+     */
+    synchronized void put(String uri, String etag, long length, byte[] data) {
+        if (data.length > maxBytes || maxEntries <= 0) {
+            return;
+        }
+        remove(uri);
+        tails.put(uri, new Tail(etag, length, data));
+        cachedBytes += data.length;
+        Iterator<Map.Entry<String, Tail>> eldest = tails.entrySet().iterator();
+        while (tails.size() > maxEntries || cachedBytes > maxBytes) {
+            cachedBytes -= eldest.next().getValue().data.length;
+            eldest.remove();
+        }
+    }
+
+    private void remove(String uri) {
+        Tail removed = tails.remove(uri);
+        if (removed != null) {
+            cachedBytes -= removed.data.length;
+        }
+    }
+
+    /**
+     * @return the number of tails served from the cache.
+     */
+    long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of tails that had to be downloaded.
+     */
+    long getMissCount() {
+        return misses.get();
+    }
+
+    private static final class Tail {
+        private final String etag;
+        private final long blobLength;
+        private final byte[] data;
+
+        Tail(String etag, long blobLength, byte[] data) {
+            this.etag = etag;
+            this.blobLength = blobLength;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.fs.FSExceptionMessages;
+import org.apache.hadoop.fs.azure.StorageInterface.CloudBlockBlobWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+
+/**
+ * An output stream that uploads a block blob in blocks, buffered in memory
+ * or on local disk by {@link UploadBlocks}, and commits the blocks when it is
+ * closed.
+ *
+ * Full blocks are uploaded on threads shared by all the streams of the JVM,
+ * with a number of uploads in flight at most, per stream and for all the
+ * streams of the file system, that {@link UploadConcurrencyController}
+ * adapts; a writer that gets ahead of its uploads waits for one of them to
+ * complete. Like the stream of
+ * the storage SDK, {@link #flush()} uploads the partial block and waits for
+ * all the uploads, without committing them.
+ */
+@InterfaceAudience.Private
+final class BlockBlobUploadStream extends OutputStream {
+    private static final Logger LOG = LoggerFactory.getLogger(BlockBlobUploadStream.class);
+
+    // The service allows at most this many blocks in a blob.
+    private static final int MAX_BLOCK_COUNT = 50000;
+
+    static final int DEFAULT_SHARED_POOL_THREADS = 64;
+
+    // The threads uploading the blocks of all the streams of the JVM; the
+    // controller of each file system bounds the uploads of its streams. They
+    // are sized by the first file system that uploads through this stream.
+    private static ExecutorService sharedPool;
+
+    private final CloudBlockBlobWrapper blob;
+    private final BlobRequestOptions options;
+    private final Supplier<OperationContext> opContexts;
+    private final int blockSize;
+    private final UploadBlocks.Factory blockFactory;
+    private final UploadConcurrencyController concurrency;
+    private final UploadConcurrencyController.Slots uploadSlots =
+            new UploadConcurrencyController.Slots();
+    // The MD5 of the whole blob, if it is stored with the blob.
+    private final MessageDigest md5;
+
+    private final List<BlockEntry> blocks = new ArrayList<>();
+    private final Deque<Future<?>> uploads = new ArrayDeque<>();
+    private final byte[] oneByte = new byte[1];
+    private UploadBlocks.Block current;
+    private volatile IOException failure;
+    private boolean closed;
+
+    /**
+     * @param blob the blob to write.
+     * @param options the options of the upload requests.
+     * @param opContexts creates the operation context of each request.
+     * @param blockSize the size of the blocks.
+     * @param concurrency bounds the number of blocks uploaded at a time.
+     * @param blockFactory creates the blocks the data is buffered in.
+     */
+    BlockBlobUploadStream(CloudBlockBlobWrapper blob, BlobRequestOptions options,
+                          Supplier<OperationContext> opContexts, int blockSize,
+                          UploadConcurrencyController concurrency,
+                          UploadBlocks.Factory blockFactory) {
+        this.blob = blob;
+        this.options = options;
+        this.opContexts = opContexts;
+        this.blockSize = blockSize;
+        this.blockFactory = blockFactory;
+        this.concurrency = concurrency;
+        MessageDigest digest = null;
+        if (Boolean.TRUE.equals(options.getStoreBlobContentMD5())) {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        this.md5 = digest;
+    }
+
+    /**
+     * Sizes the pool of upload threads shared by the streams of the JVM,
+     * unless it was sized already.
+     */
+    static synchronized void configureSharedPool(int threads) {
+        if (sharedPool == null) {
+            sharedPool = Executors.newFixedThreadPool(Math.max(1, threads),
+                    BoundedTaskExecutor.newDaemonThreadFactory("AzureBlobUploadThread-"));
+        }
+    }
+
+    private static ExecutorService getSharedPool() {
+        configureSharedPool(DEFAULT_SHARED_POOL_THREADS);
+        synchronized (BlockBlobUploadStream.class) {
+            return sharedPool;
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (closed) {
+            throw new IOException(FSExceptionMessages.STREAM_IS_CLOSED);
+        }
+        if (failure != null) {
+            throw new IOException("Failed to upload a block of " + blob.getUri(), failure);
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        oneByte[0] = (byte) b;
+        write(oneByte, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        checkState();
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (md5 != null) {
+            md5.update(b, off, len);
+        }
+        while (len > 0) {
+            if (current == null) {
+                current = blockFactory.create(blockSize);
+            }
+            int count = current.write(b, off, len);
+            off += count;
+            len -= count;
+            if (current.isFull()) {
+                uploadCurrent();
+            }
+        }
+    }
+
+    /**
+     * Uploads the partial block and waits for all the uploads, without
+     * committing them.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        checkState();
+        uploadCurrent();
+        waitForUploads();
+    }
+
+    /**
+     * Uploads the remaining data and commits the blocks.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            checkState();
+            uploadCurrent();
+            waitForUploads();
+            checkState();
+            if (md5 != null) {
+                blob.getProperties().setContentMD5(
+                        Base64.getEncoder().encodeToString(md5.digest()));
+            }
+            blob.commitBlockList(blocks, null, options, opContexts.get());
+        } catch (StorageException e) {
+            throw new IOException(e);
+        } finally {
+            closed = true;
+            if (current != null) {
+                current.release();
+                current = null;
+            }
+            // Uploads still running after a failure release their blocks
+            // when they complete.
+            uploads.clear();
+        }
+    }
+
+    /**
+     * Starts uploading the current block, once fewer than the maximum number
+     * of uploads are in flight.
+     */
+    private void uploadCurrent() throws IOException {
+        if (current == null || current.size() == 0) {
+            return;
+        }
+        if (blocks.size() == MAX_BLOCK_COUNT) {
+            throw new IOException(String.format(
+                    "%s would have more than %d blocks of %d bytes",
+                    blob.getUri(), MAX_BLOCK_COUNT, blockSize));
+        }
+        UploadBlocks.Block block = current;
+        current = null;
+        String blockId = blockId(blocks.size());
+
+        try {
+            concurrency.acquire(uploadSlots);
+        } catch (InterruptedIOException e) {
+            block.release();
+            // The data of the block is lost; the blob must not be committed.
+            InterruptedIOException interrupted =
+                    new InterruptedIOException("Interrupted while uploading " + blob.getUri());
+            failure = interrupted;
+            throw interrupted;
+        }
+        try {
+            uploads.addLast(getSharedPool().submit(() -> {
+                try {
+                    if (failure == null) {
+                        upload(blockId, block);
+                    }
+                } catch (StorageException | IOException e) {
+                    LOG.debug("Failed to upload block {} of {}", blockId, blob.getUri(), e);
+                    if (failure == null) {
+                        failure = e instanceof IOException
+                                ? (IOException) e : new IOException(e);
+                    }
+                } finally {
+                    block.release();
+                    concurrency.release(uploadSlots);
+                }
+            }));
+        } catch (RuntimeException e) {
+            block.release();
+            concurrency.release(uploadSlots);
+            failure = new IOException(e);
+            throw e;
+        }
+        // Only once the upload is submitted, so that the block list never
+        // names a block that was not uploaded.
+        blocks.add(new BlockEntry(blockId));
+        while (!uploads.isEmpty() && uploads.peekFirst().isDone()) {
+            uploads.pollFirst();
+        }
+    }
+
+    private void upload(String blockId, UploadBlocks.Block block)
+            throws StorageException, IOException {
+        try (InputStream data = block.startUpload()) {
+            blob.uploadBlock(blockId, null, data, block.size(), options,
+                    opContexts.get());
+        }
+    }
+
+    private void waitForUploads() throws IOException {
+        while (!uploads.isEmpty()) {
+            try {
+                uploads.peekFirst().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while uploading " + blob.getUri());
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            uploads.pollFirst();
+        }
+    }
+
+    /**
+     * Returns the ID of the block with the given index. The IDs of a blob
+     * must all have the same length.
+     */
+    private static String blockId(int index) {
+        return Base64.getEncoder().encodeToString(
+                String.format("block-%06d", index).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * Runs the tasks of one bulk operation on a fixed number of threads while the
+ * caller is still producing them, for instance from a listing.
+ *
+ * At most two tasks per thread wait to run; {@link #submit} blocks beyond
+ * that, so that a large operation does not queue up all of its work at once.
+ * With one thread or less, tasks run in the calling thread.
+ *
+ * Tasks are expected to handle their own failures.
+ */
+@InterfaceAudience.Private
+final class BoundedTaskExecutor implements Closeable {
+    private final ExecutorService executor;
+    private final Semaphore pendingTasks;
+
+    /**
+     * @param threads the number of threads to run the tasks on.
+     * @param threadNamePrefix the prefix of the thread names.
+     */
+    BoundedTaskExecutor(int threads, String threadNamePrefix) {
+        if (threads > 1) {
+            executor = Executors.newFixedThreadPool(threads,
+                    newDaemonThreadFactory(threadNamePrefix));
+            pendingTasks = new Semaphore(2 * threads);
+        } else {
+            executor = null;
+            pendingTasks = null;
+        }
+    }
+
+    /**
+     * Returns a factory for daemon threads named with the given prefix and a
+     * sequence number.
+     */
+    static ThreadFactory newDaemonThreadFactory(String namePrefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable,
+                    namePrefix + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Runs the task, waiting for room in the queue first.
+     */
+    void submit(Runnable task) throws InterruptedException {
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        pendingTasks.acquire();
+        executor.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                pendingTasks.release();
+            }
+        });
+    }
+
+    /**
+     * Waits until all the submitted tasks have run. No tasks can be submitted
+     * afterwards.
+     */
+    void awaitCompletion() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the threads, interrupting the tasks still running.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of reusable block buffers shared by the streams of the JVM, so that
+ * streams moving data in blocks of several megabytes do not allocate a new
+ * buffer for every block.
+ *
+ * The pool only keeps the free buffers, up to a memory limit; a stream that
+ * needs a buffer while none of its capacity is free allocates one, so it
+ * never waits. A lent buffer belongs to the stream until it releases it; a
+ * stream that is never closed does not hold back the pool, its buffers are
+ * garbage collected with it. A buffer released while the free buffers are
+ * at the limit replaces free buffers of other capacities, or is dropped.
+ *
+ * There is one pool of heap buffers and one of direct buffers; the first
+ * file system that uses a pool sets its limit.
+ */
+@InterfaceAudience.Private
+final class BufferPool {
+    private static final Logger LOG = LoggerFactory.getLogger(BufferPool.class);
+
+    private static BufferPool heapPool;
+    private static BufferPool directPool;
+
+    private final boolean direct;
+    private final long memoryLimit;
+
+    // Free buffers by capacity.
+    private final TreeMap<Integer, Deque<ByteBuffer>> free = new TreeMap<>();
+    private long freeBytes;
+    private int freeCount;
+
+    private long allocationCount;
+    private long dropCount;
+
+    private BufferPool(boolean direct, long memoryLimit) {
+        this.direct = direct;
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Returns the shared pool of heap or direct buffers, creating it with the
+     * given limit if needed.
+     *
+     * @param direct whether the buffers are direct.
+     * @param memoryLimit the capacity of all the free buffers at most.
+     */
+    static synchronized BufferPool getShared(boolean direct, long memoryLimit) {
+        if (direct) {
+            if (directPool == null) {
+                directPool = new BufferPool(true, memoryLimit);
+            }
+            return directPool;
+        }
+        if (heapPool == null) {
+            heapPool = new BufferPool(false, memoryLimit);
+        }
+        return heapPool;
+    }
+
+    /**
+     * @return whether the buffers of this pool are direct.
+     */
+    boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Returns an empty buffer of the given capacity, a free one if there is
+     * one.
+     */
+    ByteBuffer acquire(int capacity) {
+        synchronized (this) {
+            Deque<ByteBuffer> buffers = free.get(capacity);
+            if (buffers != null && !buffers.isEmpty()) {
+                freeBytes -= capacity;
+                freeCount--;
+                return buffers.pop();
+            }
+            allocationCount++;
+        }
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Gives a buffer back to the pool. The caller must not use it
+     * afterwards. Buffers of the other kind, read-only buffers and buffers
+     * released already are ignored.
+     */
+    synchronized void release(ByteBuffer buffer) {
+        if (buffer.isDirect() != direct || buffer.isReadOnly()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        Deque<ByteBuffer> buffers = free.computeIfAbsent(capacity, k -> new ArrayDeque<>());
+        for (ByteBuffer freeBuffer : buffers) {
+            if (freeBuffer == buffer) {
+                return;
+            }
+        }
+        while (freeBytes + capacity > memoryLimit) {
+            if (!dropFree(capacity)) {
+                dropCount++;
+                return;
+            }
+        }
+        buffer.clear();
+        buffers.push(buffer);
+        freeBytes += capacity;
+        freeCount++;
+    }
+
+    /**
+     * Drops a free buffer of another capacity than the given one, to make
+     * room for a buffer of that capacity.
+     */
+    private boolean dropFree(int capacity) {
+        Iterator<Map.Entry<Integer, Deque<ByteBuffer>>> sizes = free.entrySet().iterator();
+        while (sizes.hasNext()) {
+            Map.Entry<Integer, Deque<ByteBuffer>> sized = sizes.next();
+            if (sized.getKey() == capacity) {
+                continue;
+            }
+            if (!sized.getValue().isEmpty()) {
+                ByteBuffer dropped = sized.getValue().pop();
+                freeBytes -= dropped.capacity();
+                freeCount--;
+                dropCount++;
+                LOG.debug("Dropped a free buffer of {} bytes", dropped.capacity());
+                return true;
+            }
+            sizes.remove();
+        }
+        return false;
+    }
+
+    /**
+     * @return the capacity of the free buffers kept by the pool.
+     */
+    synchronized long getFreeBytes() {
+        return freeBytes;
+    }
+
+    /**
+     * @return the number of free buffers in the pool.
+     */
+    synchronized int getFreeBufferCount() {
+        return freeCount;
+    }
+
+    /**
+     * @return the number of buffers allocated because none was free.
+     */
+    synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+
+    /**
+     * @return the number of buffers dropped because the free buffers were at
+     *         the limit.
+     */
+    synchronized long getDropCount() {
+        return dropCount;
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.io.IOException;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * Receives the outcome of every key of a bulk delete, see
+ * {@link AzureNativeFileSystemStore#delete(Iterable, BulkDeleteListener)}.
+ *
+ * The methods are called from the threads doing the deletes, so
+ * implementations must be thread-safe.
+ */
+@InterfaceAudience.Private
+public interface BulkDeleteListener {
+
+    /**
+     * Called when the blob with the given key was deleted.
+     *
+     * @param existed false if there was no blob with the key.
+     */
+    void deleted(String key, boolean existed);
+
+    /**
+     * Called when deleting the blob with the given key failed.
+     */
+    void failed(String key, IOException e);
+}
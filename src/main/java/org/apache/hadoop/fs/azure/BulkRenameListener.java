@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.io.IOException;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * Receives the outcome of every pair of a bulk rename, see
+ * {@link AzureNativeFileSystemStore#rename(java.util.Map, BulkRenameListener)}.
+ *
+ * The methods are called from the threads doing the renames, so
+ * implementations must be thread-safe.
+ */
+@InterfaceAudience.Private
+public interface BulkRenameListener {
+
+    /**
+     * Called when the blob with the source key was copied to the destination
+     * key and deleted.
+     */
+    void renamed(String srcKey, String dstKey);
+
+    /**
+     * Called when renaming the blob with the source key failed. The source
+     * blob is kept, but the destination blob may have been written.
+     */
+    void failed(String srcKey, String dstKey, IOException e);
+}
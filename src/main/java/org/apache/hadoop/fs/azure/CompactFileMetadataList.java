@@ -0,0 +1,421 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+
+/**
+ * A compact, append-only holder for the result of a blob listing.
+ *
+ * Instead of one {@link FileMetadata} (with its own path, permission and
+ * boxed fields) per listed blob, the entries are stored column-wise: keys
+ * are front-coded into a shared UTF-8 byte arena, lengths and modification
+ * times live in primitive arrays and permissions are interned so that all
+ * entries with the same owner, group and mode share one object. Permissions
+ * read from blob metadata are interned by their stored form and stay
+ * undecoded until accessed, see {@link LazyPermissionStatus}.
+ * {@link FileMetadata} views are only materialized when an entry is
+ * accessed through {@link #get(int)} or the iterator.
+ *
+ * Instances are not thread-safe while being built.
+ */
+@InterfaceAudience.Private
+public final class CompactFileMetadataList implements Iterable<FileMetadata> {
+
+    /**
+     * Every RESTART_INTERVAL entries the full key is stored, which bounds the
+     * work needed to decode a single key on random access.
+     */
+    private static final int RESTART_INTERVAL = 16;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final byte FLAG_DIRECTORY = 1;
+    private static final byte FLAG_IMPLICIT = 2;
+
+    private final long blockSize;
+
+    private byte[] keyBytes = new byte[INITIAL_CAPACITY * 32];
+    private int keyBytesLength;
+    private int[] keyOffsets = new int[INITIAL_CAPACITY];
+    private int[] sharedPrefixLengths = new int[INITIAL_CAPACITY];
+    private long[] lengths = new long[INITIAL_CAPACITY];
+    private long[] modificationTimes = new long[INITIAL_CAPACITY];
+    private byte[] flags = new byte[INITIAL_CAPACITY];
+    private int[] permissionIndexes = new int[INITIAL_CAPACITY];
+    private int size;
+
+    private final List<PermissionStatus> permissions = new ArrayList<>();
+    private final Map<String, Integer> permissionIndexByValue = new HashMap<>();
+
+    // Files whose length is still being resolved, see addFile(String, Future, ...).
+    private final List<PendingLength> pendingLengths = new ArrayList<>();
+
+    // The previously added key, used for front coding.
+    private byte[] previousKey = new byte[256];
+    private int previousKeyLength;
+
+    /**
+     * @param blockSize the block size reported for every listed file.
+     */
+    public CompactFileMetadataList(long blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Adds a file entry.
+     */
+    public void addFile(String key, long length, long modificationTime,
+                        PermissionStatus permissionStatus) {
+        add(key, length, modificationTime, permissionStatus, (byte) 0);
+    }
+
+    /**
+     * Adds a directory entry.
+     *
+     * @param materialization whether the directory is backed by a blob
+     *          (explicit) or only inferred from a blob prefix (implicit).
+     */
+    public void addDirectory(String key, long modificationTime,
+                             PermissionStatus permissionStatus,
+                             BlobMaterialization materialization) {
+        add(key, 0, modificationTime, permissionStatus,
+                materialization == BlobMaterialization.Implicit
+                        ? (byte) (FLAG_DIRECTORY | FLAG_IMPLICIT)
+                        : FLAG_DIRECTORY);
+    }
+
+    /**
+     * Adds a file entry whose length is still being resolved. Its length reads
+     * as -1 until {@link #resolvePendingLengths()} is called.
+     */
+    void addFile(String key, Future<Long> length, long modificationTime,
+                 PermissionStatus permissionStatus) {
+        pendingLengths.add(new PendingLength(size, length));
+        add(key, -1, modificationTime, permissionStatus, (byte) 0);
+    }
+
+    /**
+     * Appends all the entries of another list, in order.
+     */
+    public void addAll(CompactFileMetadataList other) {
+        int offset = size;
+        KeyCursor cursor = other.new KeyCursor();
+        for (int i = 0; i < other.size; i++) {
+            cursor.advance();
+            add(cursor.key(), other.lengths[i], other.modificationTimes[i],
+                    other.permissions.get(other.permissionIndexes[i]), other.flags[i]);
+        }
+        for (PendingLength pending : other.pendingLengths) {
+            pendingLengths.add(new PendingLength(offset + pending.index, pending.length));
+        }
+    }
+
+    /**
+     * Waits for the lengths of the entries added with a pending length.
+     *
+     * @throws IOException if resolving a length failed.
+     */
+    void resolvePendingLengths() throws IOException {
+        try {
+            for (PendingLength pending : pendingLengths) {
+                lengths[pending.index] = pending.length.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted resolving file lengths");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        pendingLengths.clear();
+    }
+
+    private void add(String key, long length, long modificationTime,
+                     PermissionStatus permissionStatus, byte entryFlags) {
+        ensureCapacity(size + 1);
+        byte[] encodedKey = key.getBytes(StandardCharsets.UTF_8);
+
+        int shared = 0;
+        if (size % RESTART_INTERVAL != 0) {
+            int limit = Math.min(previousKeyLength, encodedKey.length);
+            while (shared < limit && previousKey[shared] == encodedKey[shared]) {
+                shared++;
+            }
+        }
+        int suffixLength = encodedKey.length - shared;
+        if (keyBytesLength + suffixLength > keyBytes.length) {
+            keyBytes = Arrays.copyOf(keyBytes,
+                    Math.max(keyBytes.length * 2, keyBytesLength + suffixLength));
+        }
+        System.arraycopy(encodedKey, shared, keyBytes, keyBytesLength, suffixLength);
+
+        keyOffsets[size] = keyBytesLength;
+        sharedPrefixLengths[size] = shared;
+        keyBytesLength += suffixLength;
+
+        if (previousKey.length < encodedKey.length) {
+            previousKey = new byte[Math.max(previousKey.length * 2, encodedKey.length)];
+        }
+        System.arraycopy(encodedKey, 0, previousKey, 0, encodedKey.length);
+        previousKeyLength = encodedKey.length;
+
+        lengths[size] = length;
+        modificationTimes[size] = modificationTime;
+        flags[size] = entryFlags;
+        permissionIndexes[size] = internPermission(permissionStatus);
+        size++;
+    }
+
+    private int internPermission(PermissionStatus permissionStatus) {
+        String value;
+        if (permissionStatus instanceof LazyPermissionStatus) {
+            // Interned by the stored form so that it is not decoded here.
+            value = '\u0001' + ((LazyPermissionStatus) permissionStatus).getEncoded();
+        } else {
+            // WASB stores no ACL, encryption or erasure coding bits, so the
+            // mode bits identify the permission.
+            value = permissionStatus.getUserName() + '\u0000'
+                    + permissionStatus.getGroupName() + '\u0000'
+                    + permissionStatus.getPermission().toShort();
+        }
+        Integer index = permissionIndexByValue.get(value);
+        if (index == null) {
+            index = permissions.size();
+            permissions.add(permissionStatus);
+            permissionIndexByValue.put(value, index);
+        }
+        return index;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= keyOffsets.length) {
+            return;
+        }
+        int newCapacity = Math.max(keyOffsets.length * 2, capacity);
+        keyOffsets = Arrays.copyOf(keyOffsets, newCapacity);
+        sharedPrefixLengths = Arrays.copyOf(sharedPrefixLengths, newCapacity);
+        lengths = Arrays.copyOf(lengths, newCapacity);
+        modificationTimes = Arrays.copyOf(modificationTimes, newCapacity);
+        flags = Arrays.copyOf(flags, newCapacity);
+        permissionIndexes = Arrays.copyOf(permissionIndexes, newCapacity);
+    }
+
+    /**
+     * @return the number of entries in the list.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Decodes the key of the given entry.
+     */
+    public String getKey(int index) {
+        checkIndex(index);
+        KeyCursor cursor = new KeyCursor(index - index % RESTART_INTERVAL);
+        while (cursor.position() < index) {
+            cursor.advance();
+        }
+        cursor.advance();
+        return cursor.key();
+    }
+
+    public long getLength(int index) {
+        checkIndex(index);
+        return lengths[index];
+    }
+
+    public long getModificationTime(int index) {
+        checkIndex(index);
+        return modificationTimes[index];
+    }
+
+    public boolean isDirectory(int index) {
+        checkIndex(index);
+        return (flags[index] & FLAG_DIRECTORY) != 0;
+    }
+
+    public BlobMaterialization getBlobMaterialization(int index) {
+        checkIndex(index);
+        return (flags[index] & FLAG_IMPLICIT) != 0
+                ? BlobMaterialization.Implicit
+                : BlobMaterialization.Explicit;
+    }
+
+    public PermissionStatus getPermissionStatus(int index) {
+        checkIndex(index);
+        return permissions.get(permissionIndexes[index]);
+    }
+
+    /**
+     * Materializes the {@link FileMetadata} for the given entry.
+     */
+    public FileMetadata get(int index) {
+        return toFileMetadata(index, getKey(index));
+    }
+
+    private FileMetadata toFileMetadata(int index, String key) {
+        if ((flags[index] & FLAG_DIRECTORY) != 0) {
+            return new FileMetadata(key, modificationTimes[index],
+                    permissions.get(permissionIndexes[index]),
+                    getBlobMaterialization(index), blockSize);
+        }
+        return new FileMetadata(key, lengths[index], modificationTimes[index],
+                permissions.get(permissionIndexes[index]), blockSize);
+    }
+
+    /**
+     * Materializes all the entries.
+     */
+    public FileMetadata[] toArray() {
+        FileMetadata[] result = new FileMetadata[size];
+        KeyCursor cursor = new KeyCursor();
+        for (int i = 0; i < size; i++) {
+            cursor.advance();
+            result[i] = toFileMetadata(i, cursor.key());
+        }
+        return result;
+    }
+
+    /**
+     * Drops all entries from the given index onwards.
+     */
+    public void truncate(int newSize) {
+        if (newSize < 0 || newSize > size) {
+            throw new IndexOutOfBoundsException(
+                    "Size: " + newSize + ", current size: " + size);
+        }
+        if (newSize < size) {
+            keyBytesLength = keyOffsets[newSize];
+            size = newSize;
+            pendingLengths.removeIf(pending -> {
+                if (pending.index < newSize) {
+                    return false;
+                }
+                pending.length.cancel(false);
+                return true;
+            });
+            // The next key is stored in full, so the previous key is not needed.
+            previousKeyLength = 0;
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(
+                    "Index: " + index + ", Size: " + size);
+        }
+    }
+
+    @Override
+    public Iterator<FileMetadata> iterator() {
+        return new Iterator<FileMetadata>() {
+            private final KeyCursor cursor = new KeyCursor();
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public FileMetadata next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                cursor.advance();
+                return toFileMetadata(next++, cursor.key());
+            }
+        };
+    }
+
+    private static final class PendingLength {
+        private final int index;
+        private final Future<Long> length;
+
+        PendingLength(int index, Future<Long> length) {
+            this.index = index;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Sequentially decodes front-coded keys.
+     */
+    private final class KeyCursor {
+        private byte[] buffer = new byte[256];
+        private int length;
+        private int position;
+
+        KeyCursor() {
+            this(0);
+        }
+
+        /**
+         * @param start the entry to start from; must be a restart point.
+         */
+        KeyCursor(int start) {
+            this.position = start;
+        }
+
+        /**
+         * @return the index of the next entry {@link #advance()} decodes.
+         */
+        int position() {
+            return position;
+        }
+
+        void advance() {
+            int start = keyOffsets[position];
+            int end = position + 1 < size ? keyOffsets[position + 1] : keyBytesLength;
+            int shared = sharedPrefixLengths[position];
+            int newLength = shared + end - start;
+            if (buffer.length < newLength) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, newLength));
+            }
+            System.arraycopy(keyBytes, start, buffer, shared, end - start);
+            length = newLength;
+            position++;
+        }
+
+        String key() {
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Matches keys against a set of directory patterns, such as the page blob or
+ * atomic rename directories, compiled once into a character trie.
+ *
+ * A key matches a pattern if the pattern is a prefix of the key that ends at
+ * a path separator or at the end of the key. A path component that is
+ * exactly "*" matches any single component; an asterisk anywhere else only
+ * matches itself. An empty pattern stands for the root and matches every key.
+ *
+ * Matching does not allocate and takes time linear in the key length, apart
+ * from backtracking when a wildcard and a literal component both apply.
+ */
+@InterfaceAudience.Private
+final class DirectorySetMatcher {
+    private static final char SEPARATOR = Path.SEPARATOR_CHAR;
+    private static final char ASTERISK = '*';
+
+    private final Node root;
+    private final boolean matchesAll;
+
+    private DirectorySetMatcher(Node root, boolean matchesAll) {
+        this.root = root;
+        this.matchesAll = matchesAll;
+    }
+
+    /**
+     * Compiles the given directory patterns.
+     */
+    static DirectorySetMatcher compile(Collection<String> patterns) {
+        NodeBuilder root = new NodeBuilder();
+        boolean matchesAll = false;
+        for (String pattern : patterns) {
+            if (pattern.isEmpty()) {
+                matchesAll = true;
+                continue;
+            }
+            NodeBuilder node = root;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == ASTERISK
+                        && (i == 0 || pattern.charAt(i - 1) == SEPARATOR)
+                        && (i + 1 == pattern.length() || pattern.charAt(i + 1) == SEPARATOR)) {
+                    if (node.wildcard == null) {
+                        node.wildcard = new NodeBuilder();
+                    }
+                    node = node.wildcard;
+                } else {
+                    node = node.children.computeIfAbsent(c, k -> new NodeBuilder());
+                }
+            }
+            node.terminal = true;
+        }
+        return new DirectorySetMatcher(root.build(), matchesAll);
+    }
+
+    /**
+     * @return true if the key is in one of the directories of the set.
+     */
+    boolean matches(String key) {
+        if (matchesAll) {
+            return true;
+        }
+        if (key == null || key.isEmpty()) {
+            return false;
+        }
+        return matches(root, key, 0);
+    }
+
+    private static boolean matches(Node node, String key, int position) {
+        while (true) {
+            if (node.terminal
+                    && (position == key.length() || key.charAt(position) == SEPARATOR)) {
+                return true;
+            }
+            if (position == key.length()) {
+                return false;
+            }
+            if (node.wildcard != null) {
+                int end = key.indexOf(SEPARATOR, position);
+                if (matches(node.wildcard, key, end < 0 ? key.length() : end)) {
+                    return true;
+                }
+            }
+            int index = node.childIndex(key.charAt(position));
+            if (index < 0) {
+                return false;
+            }
+            String edge = node.edges[index];
+            if (!key.regionMatches(position, edge, 0, edge.length())) {
+                return false;
+            }
+            position += edge.length();
+            node = node.children[index];
+        }
+    }
+
+    /**
+     * A trie node. Chains of nodes with a single literal child are collapsed
+     * into one edge, so that long literal directory names are compared in one
+     * step.
+     */
+    private static final class Node {
+        private final char[] labels;
+        private final String[] edges;
+        private final Node[] children;
+        private final Node wildcard;
+        private final boolean terminal;
+
+        Node(char[] labels, String[] edges, Node[] children, Node wildcard,
+             boolean terminal) {
+            this.labels = labels;
+            this.edges = edges;
+            this.children = children;
+            this.wildcard = wildcard;
+            this.terminal = terminal;
+        }
+
+        int childIndex(char label) {
+            return Arrays.binarySearch(labels, label);
+        }
+    }
+
+    private static final class NodeBuilder {
+        private final TreeMap<Character, NodeBuilder> children = new TreeMap<>();
+        private NodeBuilder wildcard;
+        private boolean terminal;
+
+        Node build() {
+            char[] labels = new char[children.size()];
+            String[] edges = new String[children.size()];
+            Node[] built = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, NodeBuilder> child : children.entrySet()) {
+                StringBuilder edge = new StringBuilder().append(child.getKey());
+                NodeBuilder target = child.getValue();
+                while (target.children.size() == 1 && target.wildcard == null
+                        && !target.terminal) {
+                    Map.Entry<Character, NodeBuilder> next = target.children.firstEntry();
+                    edge.append(next.getKey());
+                    target = next.getValue();
+                }
+                labels[i] = child.getKey();
+                edges[i] = edge.toString();
+                built[i] = target.build();
+                i++;
+            }
+            return new Node(labels, edges, built,
+                    wildcard == null ? null : wildcard.build(), terminal);
+        }
+    }
+}
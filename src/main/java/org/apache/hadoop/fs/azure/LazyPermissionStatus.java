@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.function.Function;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+
+/**
+ * An immutable {@link PermissionStatus} that keeps the permission metadata of
+ * a blob in its stored form and only decodes it on first access.
+ *
+ * Listings return the permission metadata of every blob, but many callers
+ * only need names and sizes, and the blobs of a table almost always share a
+ * handful of distinct values. Instances are interned by their stored form
+ * (see {@link AzureNativeFileSystemStore}), so each distinct value is
+ * decoded at most once.
+ */
+@InterfaceAudience.Private
+final class LazyPermissionStatus extends PermissionStatus {
+    private final String encoded;
+    private final Function<String, PermissionStatus> decoder;
+    private volatile PermissionStatus decoded;
+
+    LazyPermissionStatus(String encoded,
+                         Function<String, PermissionStatus> decoder) {
+        super(null, null, null);
+        this.encoded = encoded;
+        this.decoder = decoder;
+    }
+
+    /**
+     * @return the permission metadata value this status was read from.
+     */
+    String getEncoded() {
+        return encoded;
+    }
+
+    private PermissionStatus decoded() {
+        PermissionStatus result = decoded;
+        if (result == null) {
+            PermissionStatus status = decoder.apply(encoded);
+            result = PermissionStatus.createImmutable(status.getUserName(),
+                    status.getGroupName(), status.getPermission());
+            decoded = result;
+        }
+        return result;
+    }
+
+    @Override
+    public String getUserName() {
+        return decoded().getUserName();
+    }
+
+    @Override
+    public String getGroupName() {
+        return decoded().getGroupName();
+    }
+
+    @Override
+    public FsPermission getPermission() {
+        return decoded().getPermission();
+    }
+
+    /**
+     * Instances are shared, so they cannot apply a umask. Hadoop releases
+     * before 3 declare this mutator on {@link PermissionStatus}; this
+     * overrides it when running against them.
+     */
+    public PermissionStatus applyUMask(FsPermission umask) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        decoded().write(out);
+    }
+
+    @Override
+    public String toString() {
+        return decoded().toString();
+    }
+}
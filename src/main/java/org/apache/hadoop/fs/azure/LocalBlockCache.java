@@ -0,0 +1,344 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of blob blocks in files of a local directory, typically on a local
+ * SSD, so that blobs read again and again are read at local disk speed.
+ *
+ * A block is identified by the URI of its blob, which names the account,
+ * container and key, by the ETag of the blob, by the block size and by the
+ * index of the block. A blob that changes gets a new ETag, so stale blocks
+ * are never read; they age out of the cache.
+ *
+ * Several JVMs can share a directory. Blocks are written to temporary files
+ * that are atomically renamed into place, so readers never see a partial
+ * block, and a block file being read stays readable even if another JVM
+ * evicts it meanwhile. The modification time of a block file is its last
+ * use, updated at most once a minute; once the directory grows past its
+ * limit, the least recently used blocks of all the JVMs are deleted.
+ *
+ * Blocks are written, touched and evicted on a writer thread of the cache,
+ * not on the thread of the read, and blocks are not cached while the writer
+ * is behind.
+ *
+ * Failures to use the cache are logged and treated as misses, so that reads
+ * never fail because of the cache.
+ */
+@InterfaceAudience.Private
+final class LocalBlockCache {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalBlockCache.class);
+
+    private static final String BLOCK_SUFFIX = ".blk";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Eviction frees some room at once rather than a block at a time.
+    private static final double EVICTION_TARGET = 0.9;
+    // Temporary files older than this were left behind by a failed JVM.
+    private static final long STALE_TEMP_FILE_AGE_MS = 60 * 60 * 1000;
+    // A block used again within this time is not touched again.
+    private static final long TOUCH_INTERVAL_MS = 60 * 1000;
+    // The writes and touches waiting for the writer at most.
+    private static final int MAX_PENDING_WRITES = 8;
+    private static final long WRITER_KEEP_ALIVE_MS = 60 * 1000;
+
+    // The caches of the JVM, one per directory.
+    private static final Map<Path, LocalBlockCache> CACHES = new HashMap<>();
+
+    private final Path directory;
+    private final long maxBytes;
+    // An estimate of the size of the directory, corrected on eviction.
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final Object evictionLock = new Object();
+    private final ThreadPoolExecutor writer;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private LocalBlockCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        cachedBytes.set(listBlocks().stream().mapToLong(b -> b.size).sum());
+        this.writer = new ThreadPoolExecutor(1, 1,
+                WRITER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_WRITES),
+                BoundedTaskExecutor.newDaemonThreadFactory("AzureBlockCacheWriter-"));
+        writer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the cache of the given directory, creating the directory if
+     * needed. File systems of the JVM that use the same directory share the
+     * cache; the first one sets its size.
+     *
+     * @param directory the local directory of the block files.
+     * @param maxBytes the size of all the block files at most.
+     */
+    static LocalBlockCache forDirectory(String directory, long maxBytes)
+            throws IOException {
+        Path path = Paths.get(directory).toAbsolutePath().normalize();
+        synchronized (CACHES) {
+            LocalBlockCache cache = CACHES.get(path);
+            if (cache == null) {
+                cache = new LocalBlockCache(path, maxBytes);
+                CACHES.put(path, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Returns the name under which the blocks of the given version of a blob
+     * are cached.
+     */
+    static String blobName(String uri, String etag, int blockSize) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(uri.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            digest.update(etag.getBytes(StandardCharsets.UTF_8));
+            return StringUtils.byteToHexString(digest.digest()) + "-" + blockSize;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a cached block.
+     *
+     * @param blobName the name of the blob, see {@link #blobName}.
+     * @param index the index of the block in the blob.
+     * @param length the length of the block.
+     * @return the block, or null if it is not cached.
+     */
+    byte[] get(String blobName, long index, int length) {
+        Path file = blockFile(blobName, index);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() != length) {
+                LOG.debug("Ignoring cached block {} of {} bytes instead of {}",
+                        file, channel.size(), length);
+                misses.incrementAndGet();
+                return null;
+            }
+            byte[] data = new byte[length];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Cached block " + file + " ended early");
+                }
+            }
+            if (System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis()
+                    > TOUCH_INTERVAL_MS) {
+                submit(() -> touch(file));
+            }
+            hits.incrementAndGet();
+            return data;
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return null;
+        } catch (IOException e) {
+            LOG.debug("Failed to read cached block {}", file, e);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Caches a block on the writer thread, unless the writer is behind.
+     *
+     * @param data the block, which must not be modified afterwards.
+     */
+    void put(String blobName, long index, byte[] data) {
+        if (data.length > maxBytes) {
+            return;
+        }
+        submit(() -> write(blobName, index, data));
+    }
+
+    private void submit(Runnable task) {
+        try {
+            writer.execute(task);
+        } catch (RejectedExecutionException e) {
+            LOG.trace("Skipped a write to {}, the writer is behind", directory);
+        }
+    }
+
+    /**
+     * Writes a block, evicting the least recently used blocks if the cache
+     * is full.
+     */
+    private void write(String blobName, long index, byte[] data) {
+        Path file = blockFile(blobName, index);
+        Path temp = directory.resolve(file.getFileName() + "." + UUID.randomUUID()
+                + TEMP_SUFFIX);
+        try {
+            Files.write(temp, data);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOG.debug("Failed to cache block {}", file, e);
+            deleteQuietly(temp);
+            return;
+        }
+        if (cachedBytes.addAndGet(data.length) > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * @return the number of blocks read from the cache.
+     */
+    long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of blocks that were not in the cache.
+     */
+    long getMissCount() {
+        return misses.get();
+    }
+
+    private Path blockFile(String blobName, long index) {
+        return directory.resolve(blobName + "-" + index + BLOCK_SUFFIX);
+    }
+
+    /**
+     * Deletes the least recently used blocks of the directory, whichever JVM
+     * cached them, until it is back under its limit.
+     */
+    private void evict() {
+        synchronized (evictionLock) {
+            if (cachedBytes.get() <= maxBytes) {
+                return;
+            }
+            try {
+                List<BlockFile> blocks = listBlocks();
+                long total = blocks.stream().mapToLong(b -> b.size).sum();
+                blocks.sort(Comparator.comparingLong(b -> b.lastUsed));
+                long target = (long) (maxBytes * EVICTION_TARGET);
+                int evicted = 0;
+                for (BlockFile block : blocks) {
+                    if (total <= target) {
+                        break;
+                    }
+                    if (deleteQuietly(block.path)) {
+                        evicted++;
+                    }
+                    total -= block.size;
+                }
+                cachedBytes.set(total);
+                LOG.debug("Evicted {} blocks from {}", evicted, directory);
+            } catch (IOException e) {
+                LOG.warn("Failed to evict blocks from {}", directory, e);
+            }
+        }
+    }
+
+    /**
+     * Lists the block files of the directory, deleting the temporary files
+     * that failed JVMs left behind.
+     */
+    private List<BlockFile> listBlocks() throws IOException {
+        List<BlockFile> blocks = new ArrayList<>();
+        long staleBefore = System.currentTimeMillis() - STALE_TEMP_FILE_AGE_MS;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    // Evicted or renamed by another JVM meanwhile.
+                    continue;
+                }
+                long lastModified = attributes.lastModifiedTime().toMillis();
+                if (name.endsWith(BLOCK_SUFFIX)) {
+                    blocks.add(new BlockFile(file, attributes.size(), lastModified));
+                } else if (name.endsWith(TEMP_SUFFIX) && lastModified < staleBefore) {
+                    deleteQuietly(file);
+                }
+            }
+        }
+        return blocks;
+    }
+
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Evicted meanwhile, or not ours to touch; it only affects eviction.
+            LOG.trace("Failed to touch {}", file, e);
+        }
+    }
+
+    private static boolean deleteQuietly(Path file) {
+        try {
+            return Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.debug("Failed to delete {}", file, e);
+            return false;
+        }
+    }
+
+    private static final class BlockFile {
+        private final Path path;
+        private final long size;
+        private final long lastUsed;
+
+        BlockFile(Path path, long size, long lastUsed) {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
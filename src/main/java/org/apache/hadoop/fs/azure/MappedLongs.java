@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * Volatile and atomic operations on the longs of a memory-mapped file, which
+ * other processes may map too. Buffers have no atomic operations in Java 8,
+ * so this is the only class that uses {@code sun.misc.Unsafe}, which it
+ * looks up reflectively since it is not a supported API.
+ *
+ * Offsets are in bytes from the start of the mapping and must be multiples
+ * of 8 within it; they are not checked.
+ */
+@InterfaceAudience.Private
+final class MappedLongs {
+    private static final MethodHandle GET_LONG_VOLATILE;
+    private static final MethodHandle PUT_LONG_VOLATILE;
+    private static final MethodHandle COMPARE_AND_SWAP_LONG;
+    private static final MethodHandle GET_AND_ADD_LONG;
+    private static final MethodHandle GET_AND_SET_LONG;
+    private static final MethodHandle GET_LONG;
+    private static final long BUFFER_ADDRESS_OFFSET;
+
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType getType = MethodType.methodType(long.class, Object.class, long.class);
+            MethodType updateType = MethodType.methodType(long.class, Object.class, long.class,
+                    long.class);
+            GET_LONG_VOLATILE = lookup.findVirtual(unsafeClass, "getLongVolatile", getType)
+                    .bindTo(unsafe);
+            PUT_LONG_VOLATILE = lookup.findVirtual(unsafeClass, "putLongVolatile",
+                    MethodType.methodType(void.class, Object.class, long.class, long.class))
+                    .bindTo(unsafe);
+            COMPARE_AND_SWAP_LONG = lookup.findVirtual(unsafeClass, "compareAndSwapLong",
+                    MethodType.methodType(boolean.class, Object.class, long.class,
+                            long.class, long.class))
+                    .bindTo(unsafe);
+            GET_AND_ADD_LONG = lookup.findVirtual(unsafeClass, "getAndAddLong", updateType)
+                    .bindTo(unsafe);
+            GET_AND_SET_LONG = lookup.findVirtual(unsafeClass, "getAndSetLong", updateType)
+                    .bindTo(unsafe);
+            GET_LONG = lookup.findVirtual(unsafeClass, "getLong", getType).bindTo(unsafe);
+            BUFFER_ADDRESS_OFFSET = (long) lookup.findVirtual(unsafeClass, "objectFieldOffset",
+                    MethodType.methodType(long.class, Field.class))
+                    .invoke(unsafe, Buffer.class.getDeclaredField("address"));
+        } catch (Throwable t) {
+            throw new ExceptionInInitializerError(t);
+        }
+    }
+
+    // Referenced so that the mapping lives as long as this object.
+    private final MappedByteBuffer buffer;
+    private final long address;
+
+    MappedLongs(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        try {
+            this.address = (long) GET_LONG.invokeExact((Object) buffer, BUFFER_ADDRESS_OFFSET);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    long get(long offset) {
+        try {
+            return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address + offset);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    void set(long offset, long value) {
+        try {
+            PUT_LONG_VOLATILE.invokeExact((Object) null, address + offset, value);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    boolean compareAndSet(long offset, long expected, long value) {
+        try {
+            return (boolean) COMPARE_AND_SWAP_LONG.invokeExact((Object) null,
+                    address + offset, expected, value);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    long getAndAdd(long offset, long delta) {
+        try {
+            return (long) GET_AND_ADD_LONG.invokeExact((Object) null, address + offset, delta);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    long getAndSet(long offset, long value) {
+        try {
+            return (long) GET_AND_SET_LONG.invokeExact((Object) null, address + offset, value);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
@@ -0,0 +1,669 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.fs.FSExceptionMessages;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.azure.StorageInterface.CloudBlockBlobWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+
+/**
+ * An input stream for block blobs that reads ahead while the blob is read
+ * sequentially.
+ *
+ * The blob is read in blocks of a fixed size. Once a read continues where
+ * the previous block ended, the next blocks are fetched ahead on a pool of
+ * threads shared by all streams, up to a number of blocks per stream, so
+ * that the network and the reader overlap. A seek outside the blocks already
+ * fetched cancels the read-ahead until the reads are sequential again.
+ * Positioned and vectored reads fetch exactly the requested ranges and do
+ * not disturb the read-ahead.
+ *
+ * The memory of the blocks read ahead by all the streams of the JVM is
+ * bounded; a stream that cannot reserve memory for a block reads it when it
+ * is needed instead.
+ *
+ * With a tail cache, reads of the last bytes of the blob, where formats such
+ * as Parquet or ORC keep their footer, are served from the tail downloaded by
+ * an earlier stream if the blob has not changed since.
+ *
+ * With a local block cache, the blob is read in blocks aligned to the block
+ * size, which are looked up in the cache before they are downloaded and
+ * cached afterwards. Positioned and vectored reads then go through the same
+ * blocks.
+ *
+ * With a buffer pool, the blocks read sequentially and ahead are read into
+ * buffers of the pool, which are returned once the reader moves past them.
+ */
+@InterfaceAudience.Private
+final class ReadAheadBlockBlobInputStream extends FSInputStream
+        implements VectoredReadable {
+    private static final Logger LOG =
+            LoggerFactory.getLogger(ReadAheadBlockBlobInputStream.class);
+
+    // The pool and memory budget shared by all the streams of the JVM. They
+    // are sized by the first file system that enables read-ahead.
+    private static ExecutorService sharedPool;
+    private static Semaphore sharedMemory;
+
+    private final CloudBlockBlobWrapper blob;
+    private final BlobRequestOptions options;
+    private final Supplier<OperationContext> opContexts;
+    private final int blockSize;
+    private final int readAheadBlocks;
+    private final VectoredReads vectoredReads;
+    private final BlobTailCache tailCache;
+    private final LocalBlockCache blockCache;
+    // The name of this version of the blob in the block cache.
+    private final String blockCacheName;
+    private final BufferPool bufferPool;
+    private final long streamLength;
+    private final String etag;
+    // Reads of the blob fail if it changes while it is read, unless null.
+    private final AccessCondition accessCondition;
+    // Reads from this offset on are served from the tail of the blob.
+    private final long tailStart;
+    private byte[] tail;
+
+    private final Deque<Prefetch> prefetches = new ArrayDeque<>();
+    private long position;
+    private byte[] buffer;
+    // The pool buffer that holds the buffer, returned to the pool with it.
+    private ByteBuffer pooledBuffer;
+    private long bufferStart;
+    private int bufferLength;
+    // Whether the last block read continued where the one before it ended.
+    private boolean sequential;
+    private boolean closed;
+    private final byte[] oneByte = new byte[1];
+
+    /**
+     * @param blob the blob to read.
+     * @param options the options of the range requests.
+     * @param opContexts creates the operation context of each range request.
+     * @param blockSize the size of the blocks read at a time.
+     * @param readAheadBlocks the number of blocks read ahead at most.
+     * @param tolerateConcurrentAppend whether the blob may change while it is
+     *          read.
+     * @param vectoredReads reads the ranges of vectored reads.
+     * @param tailCache the cache of the tails of blobs, or null.
+     * @param blockCache the local cache of blob blocks, or null.
+     * @param bufferPool the pool of heap buffers of the blocks, or null.
+     */
+    ReadAheadBlockBlobInputStream(CloudBlockBlobWrapper blob,
+                                  BlobRequestOptions options,
+                                  Supplier<OperationContext> opContexts, int blockSize,
+                                  int readAheadBlocks,
+                                  boolean tolerateConcurrentAppend,
+                                  VectoredReads vectoredReads,
+                                  BlobTailCache tailCache,
+                                  LocalBlockCache blockCache,
+                                  BufferPool bufferPool)
+            throws IOException {
+        this.blob = blob;
+        this.options = options;
+        this.opContexts = opContexts;
+        this.blockSize = blockSize;
+        this.readAheadBlocks = readAheadBlocks;
+        this.vectoredReads = vectoredReads;
+        this.bufferPool = bufferPool;
+        try {
+            blob.downloadAttributes(opContexts.get());
+        } catch (StorageException e) {
+            throw new IOException(e);
+        }
+        this.streamLength = blob.getProperties().getLength();
+        this.etag = blob.getProperties().getEtag();
+        this.accessCondition = tolerateConcurrentAppend || etag == null
+                || blob.getBlob() == null
+                ? null : AccessCondition.generateIfMatchCondition(etag);
+        // A blob that may change while it is read cannot be matched with a
+        // cached tail.
+        this.tailCache = tolerateConcurrentAppend || etag == null ? null : tailCache;
+        this.blockCache = tolerateConcurrentAppend || etag == null ? null : blockCache;
+        this.blockCacheName = this.blockCache == null ? null
+                : LocalBlockCache.blobName(blob.getUri().toString(), etag, blockSize);
+        this.tailStart = this.tailCache == null ? Long.MAX_VALUE
+                : Math.max(0, streamLength - this.tailCache.getTailSize());
+    }
+
+    /**
+     * Sizes the pool and the memory budget shared by the streams of the JVM,
+     * unless they were sized already.
+     *
+     * @param threads the number of threads reading ahead.
+     * @param memoryLimit the memory of all the blocks read ahead, in bytes.
+     */
+    static synchronized void configureSharedPool(int threads, long memoryLimit) {
+        if (sharedPool == null) {
+            sharedPool = Executors.newFixedThreadPool(Math.max(1, threads),
+                    BoundedTaskExecutor.newDaemonThreadFactory(
+                            "AzureBlobReadAheadThread-"));
+            sharedMemory = new Semaphore(
+                    (int) Math.min(Integer.MAX_VALUE, Math.max(0, memoryLimit)));
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (closed) {
+            throw new IOException(FSExceptionMessages.STREAM_IS_CLOSED);
+        }
+    }
+
+    @Override
+    public synchronized long getPos() throws IOException {
+        checkState();
+        return position;
+    }
+
+    @Override
+    public synchronized void seek(long pos) throws IOException {
+        checkState();
+        if (pos < 0) {
+            throw new EOFException(FSExceptionMessages.NEGATIVE_SEEK + " " + pos);
+        }
+        if (pos > streamLength) {
+            throw new EOFException(FSExceptionMessages.CANNOT_SEEK_PAST_EOF + " " + pos);
+        }
+        position = pos;
+        if (!isBuffered(pos) && !isPrefetched(pos)) {
+            cancelPrefetches();
+        }
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) throws IOException {
+        return false;
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        checkState();
+        if (n <= 0) {
+            return 0;
+        }
+        long target = Math.min(streamLength, position + n);
+        long skipped = target - position;
+        seek(target);
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        checkState();
+        if (isBuffered(position)) {
+            return (int) (bufferStart + bufferLength - position);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, streamLength - position);
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        int result = read(oneByte, 0, 1);
+        return result < 0 ? -1 : oneByte[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        checkState();
+        validatePositionedReadArgs(position, b, off, len);
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= streamLength) {
+            return -1;
+        }
+        if (!isBuffered(position)) {
+            fillBuffer();
+        }
+        int count = (int) Math.min(len, bufferStart + bufferLength - position);
+        System.arraycopy(buffer, (int) (position - bufferStart), b, off, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * Reads the requested range directly into the given buffer, without
+     * moving the position of the stream or its read-ahead.
+     */
+    @Override
+    public int read(long pos, byte[] b, int off, int len) throws IOException {
+        synchronized (this) {
+            checkState();
+        }
+        validatePositionedReadArgs(pos, b, off, len);
+        if (len == 0) {
+            return 0;
+        }
+        if (pos >= streamLength) {
+            return -1;
+        }
+        int count = (int) Math.min(len, streamLength - pos);
+        if (pos >= tailStart) {
+            System.arraycopy(tail(), (int) (pos - tailStart), b, off, count);
+            return count;
+        }
+        System.arraycopy(readRange(pos, count), 0, b, off, count);
+        return count;
+    }
+
+    @Override
+    public void readVectored(List<? extends ReadRange> ranges,
+                             IntFunction<ByteBuffer> allocate) throws IOException {
+        synchronized (this) {
+            checkState();
+        }
+        vectoredReads.read(ranges, allocate, streamLength,
+                (offset, length) -> {
+                    if (offset >= tailStart) {
+                        int start = (int) (offset - tailStart);
+                        return Arrays.copyOfRange(tail(), start, start + length);
+                    }
+                    return readRange(offset, length);
+                });
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            cancelPrefetches();
+            releaseBuffer();
+        }
+    }
+
+    private boolean isBuffered(long pos) {
+        return buffer != null && pos >= bufferStart
+                && pos < bufferStart + bufferLength;
+    }
+
+    private boolean isPrefetched(long pos) {
+        for (Prefetch prefetch : prefetches) {
+            if (prefetch.contains(pos)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes the block that contains the current position the buffer, from
+     * the read-ahead if possible, and reads ahead if the reads are
+     * sequential.
+     */
+    private void fillBuffer() throws IOException {
+        sequential = buffer != null && position == bufferStart + bufferLength;
+
+        // Drop the blocks read ahead that the reader skipped over.
+        while (!prefetches.isEmpty() && !prefetches.peekFirst().contains(position)) {
+            if (prefetches.peekFirst().offset < position) {
+                prefetches.pollFirst().cancel();
+            } else {
+                cancelPrefetches();
+            }
+        }
+
+        releaseBuffer();
+        if (!prefetches.isEmpty()) {
+            Prefetch prefetch = prefetches.pollFirst();
+            setBuffer(prefetch.offset, prefetch.await());
+            sequential = true;
+        } else if (position >= tailStart) {
+            buffer = tail();
+            bufferStart = tailStart;
+            bufferLength = buffer.length;
+        } else {
+            // Cached blocks are aligned to the block size.
+            long blockStart = blockCache == null
+                    ? position : position - position % blockSize;
+            setBuffer(blockStart, readPooledBlock(blockStart,
+                    (int) Math.min(blockSize, streamLength - blockStart)));
+        }
+
+        if (sequential) {
+            readAhead();
+        }
+    }
+
+    private void setBuffer(long start, ByteBuffer block) {
+        buffer = block.array();
+        pooledBuffer = block;
+        bufferStart = start;
+        bufferLength = block.limit();
+    }
+
+    private void releaseBuffer() {
+        // With a block cache the blocks are not pooled, and may still be
+        // being written to the cache.
+        if (pooledBuffer != null && bufferPool != null && blockCache == null) {
+            bufferPool.release(pooledBuffer);
+        }
+        pooledBuffer = null;
+        buffer = null;
+    }
+
+    /**
+     * Starts reading the blocks after the buffer and the blocks already read
+     * ahead, as far as the per-stream and the shared limits allow.
+     */
+    private void readAhead() {
+        ExecutorService pool;
+        Semaphore memory;
+        synchronized (ReadAheadBlockBlobInputStream.class) {
+            pool = sharedPool;
+            memory = sharedMemory;
+        }
+        if (pool == null) {
+            return;
+        }
+        long next = prefetches.isEmpty()
+                ? bufferStart + bufferLength : prefetches.peekLast().end();
+        while (prefetches.size() < readAheadBlocks && next < streamLength) {
+            int length = (int) Math.min(blockSize, streamLength - next);
+            if (!memory.tryAcquire(length)) {
+                LOG.debug("Read-ahead memory exhausted, not reading ahead at {} of {}",
+                        next, blob.getUri());
+                break;
+            }
+            long offset = next;
+            // Blocks of a block cache are not pooled.
+            Prefetch prefetch = new Prefetch(offset, length, memory,
+                    blockCache == null ? bufferPool : null);
+            prefetch.start(pool, () -> readPooledBlock(offset, length));
+            prefetches.addLast(prefetch);
+            next += length;
+        }
+    }
+
+    private void cancelPrefetches() {
+        while (!prefetches.isEmpty()) {
+            prefetches.pollFirst().cancel();
+        }
+    }
+
+    /**
+     * Returns the bytes of the blob from the tail start on, from the tail
+     * cache if an earlier stream downloaded them.
+     */
+    private byte[] tail() throws IOException {
+        synchronized (this) {
+            if (tail != null) {
+                return tail;
+            }
+        }
+        String uri = blob.getUri().toString();
+        byte[] data = tailCache.get(uri, etag, streamLength);
+        if (data == null) {
+            data = fetch(tailStart, (int) (streamLength - tailStart));
+            tailCache.put(uri, etag, streamLength, data);
+        }
+        synchronized (this) {
+            tail = data;
+        }
+        return data;
+    }
+
+    /**
+     * Reads a range of the blob, through the blocks of the block cache if
+     * there is one.
+     */
+    private byte[] readRange(long offset, int length) throws IOException {
+        if (blockCache == null) {
+            return fetch(offset, length);
+        }
+        byte[] data = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            long pos = offset + copied;
+            long blockStart = pos - pos % blockSize;
+            byte[] block = readBlock(blockStart,
+                    (int) Math.min(blockSize, streamLength - blockStart));
+            int count = (int) Math.min(length - copied, blockStart + block.length - pos);
+            System.arraycopy(block, (int) (pos - blockStart), data, copied, count);
+            copied += count;
+        }
+        return data;
+    }
+
+    /**
+     * Reads a block of the blob, from the block cache if it is cached there.
+     * Blocks that are not aligned to the block size are not cached.
+     */
+    private byte[] readBlock(long offset, int length) throws IOException {
+        if (blockCache == null || offset % blockSize != 0) {
+            return fetch(offset, length);
+        }
+        long index = offset / blockSize;
+        byte[] data = blockCache.get(blockCacheName, index, length);
+        if (data == null) {
+            data = fetch(offset, length);
+            blockCache.put(blockCacheName, index, data);
+        }
+        return data;
+    }
+
+    /**
+     * Reads a block of the blob into a buffer of the buffer pool, unless
+     * there is no pool or a block cache provides the block.
+     *
+     * @return the block, with its length as limit.
+     */
+    private ByteBuffer readPooledBlock(long offset, int length) throws IOException {
+        if (bufferPool == null || blockCache != null) {
+            return ByteBuffer.wrap(readBlock(offset, length));
+        }
+        ByteBuffer block = bufferPool.acquire(blockSize);
+        try {
+            fetchInto(offset, length, new BlockBuffer(block.array()));
+        } catch (IOException | RuntimeException e) {
+            bufferPool.release(block);
+            throw e;
+        }
+        block.limit(length);
+        return block;
+    }
+
+    /**
+     * Downloads a range of the blob.
+     */
+    private byte[] fetch(long offset, int length) throws IOException {
+        BlockBuffer block = new BlockBuffer(length);
+        fetchInto(offset, length, block);
+        // The buffer was sized for the range, so it holds exactly the range.
+        return block.array();
+    }
+
+    private void fetchInto(long offset, int length, BlockBuffer block)
+            throws IOException {
+        try {
+            if (accessCondition != null) {
+                blob.getBlob().downloadRange(offset, (long) length, block,
+                        accessCondition, options, opContexts.get());
+            } else {
+                blob.downloadRange(offset, length, block, options, opContexts.get());
+            }
+        } catch (StorageException e) {
+            throw new IOException(e);
+        }
+        if (block.size() != length) {
+            throw new EOFException(String.format(
+                    "Read %d bytes instead of %d at offset %d of %s",
+                    block.size(), length, offset, blob.getUri()));
+        }
+    }
+
+    /**
+     * The buffer a range is read into, exposed without copying.
+     */
+    private static final class BlockBuffer extends ByteArrayOutputStream {
+        BlockBuffer(int length) {
+            super(length);
+        }
+
+        /**
+         * Writes into the given array, which must be large enough for the
+         * range.
+         */
+        BlockBuffer(byte[] array) {
+            super(0);
+            buf = array;
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * A block being read ahead, and the shared memory reserved for it.
+     *
+     * A prefetch that is cancelled while its request is in flight is left to
+     * complete; its memory is given back, and its block returned to the
+     * pool, once it does.
+     */
+    private static final class Prefetch {
+        private final long offset;
+        private final int length;
+        private final Semaphore memory;
+        private final BufferPool bufferPool;
+        private Future<ByteBuffer> block;
+        private boolean started;
+        private boolean done;
+        private boolean released;
+        // The block read, until the stream takes it or abandons it.
+        private ByteBuffer result;
+        private boolean abandoned;
+
+        Prefetch(long offset, int length, Semaphore memory, BufferPool bufferPool) {
+            this.offset = offset;
+            this.length = length;
+            this.memory = memory;
+            this.bufferPool = bufferPool;
+        }
+
+        void start(ExecutorService pool, Callable<ByteBuffer> read) {
+            block = pool.submit(() -> {
+                synchronized (this) {
+                    if (abandoned) {
+                        return null;
+                    }
+                    started = true;
+                }
+                ByteBuffer data = null;
+                try {
+                    data = read.call();
+                    return data;
+                } finally {
+                    synchronized (this) {
+                        done = true;
+                        if (abandoned) {
+                            recycle(data);
+                            release();
+                        } else {
+                            result = data;
+                        }
+                    }
+                }
+            });
+        }
+
+        boolean contains(long pos) {
+            return pos >= offset && pos < end();
+        }
+
+        long end() {
+            return offset + length;
+        }
+
+        ByteBuffer await() throws IOException {
+            ByteBuffer data;
+            try {
+                data = block.get();
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading ahead");
+            } catch (ExecutionException e) {
+                synchronized (this) {
+                    release();
+                }
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException
+                        ? (IOException) cause : new IOException(cause);
+            }
+            synchronized (this) {
+                result = null;
+                release();
+            }
+            return data;
+        }
+
+        void cancel() {
+            synchronized (this) {
+                abandoned = true;
+                if (!started || done) {
+                    recycle(result);
+                    result = null;
+                    release();
+                }
+            }
+            // A request in flight is not interrupted: that could leave its
+            // pooled connection unusable.
+            block.cancel(false);
+        }
+
+        private void recycle(ByteBuffer data) {
+            if (data != null && bufferPool != null) {
+                bufferPool.release(data);
+            }
+        }
+
+        private void release() {
+            if (!released) {
+                released = true;
+                memory.release(length);
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * A range of a blob to read with a vectored read, see
+ * {@link VectoredReadable}, and the future data of the range.
+ */
+@InterfaceAudience.Private
+public final class ReadRange {
+    private final long offset;
+    private final int length;
+    private final CompletableFuture<ByteBuffer> data = new CompletableFuture<>();
+
+    /**
+     * @param offset the offset of the range in the blob.
+     * @param length the number of bytes to read.
+     */
+    public ReadRange(long offset, int length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid range: offset %d, length %d", offset, length));
+        }
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the data of the range, once it was read. The buffer is
+     *         positioned at the start of the data and limited to its end.
+     */
+    public CompletableFuture<ByteBuffer> getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "range[" + offset + "," + (offset + length) + ")";
+    }
+}
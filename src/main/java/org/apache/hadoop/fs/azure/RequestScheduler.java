@@ -0,0 +1,278 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.util.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.azure.storage.Constants;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RequestCompletedEvent;
+import com.microsoft.azure.storage.RequestResult;
+import com.microsoft.azure.storage.SendingRequestEvent;
+import com.microsoft.azure.storage.StorageEvent;
+
+/**
+ * Schedules the requests of all the file systems of the JVM to a storage
+ * account over a bounded number of connections, so that many streams do not
+ * oversubscribe the account and get throttled.
+ *
+ * A request waits for a connection when it is about to be sent, in the
+ * sending event of its operation context, and gives it back when it
+ * completes, so every store operation made with an instrumented context is
+ * scheduled, including the requests of the streams of the storage SDK and
+ * their retries.
+ *
+ * Metadata requests, such as listings, property reads, deletes and copies,
+ * get the free connections before data transfers, except that every
+ * {@value #METADATA_BURST} metadata requests a waiting transfer gets one, so
+ * transfers are not starved. Requests of the same priority are served round
+ * robin across blobs, so a stream with many requests queued does not hold
+ * back the others.
+ */
+@InterfaceAudience.Private
+final class RequestScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(RequestScheduler.class);
+
+    // The metadata requests served in a row while transfers wait.
+    static final int METADATA_BURST = 4;
+
+    // The schedulers of the JVM, one per account host.
+    private static final Map<String, RequestScheduler> SCHEDULERS = new ConcurrentHashMap<>();
+
+    enum Priority {
+        METADATA, TRANSFER
+    }
+
+    private final String account;
+    private final int maxConnections;
+    private int activeConnections;
+
+    // Waiting requests by blob, for each priority; a blob served moves to
+    // the end.
+    private final LinkedHashMap<String, Deque<Ticket>> metadataQueue = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Deque<Ticket>> transferQueue = new LinkedHashMap<>();
+    private int waitingCount;
+    private int metadataStreak;
+
+    private long waitCount;
+    private long waitTimeMs;
+
+    private RequestScheduler(String account, int maxConnections) {
+        this.account = account;
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Returns the scheduler of the given account host, creating it with the
+     * given number of connections if needed.
+     */
+    static RequestScheduler forAccount(String account, int maxConnections) {
+        return SCHEDULERS.computeIfAbsent(account,
+                a -> new RequestScheduler(a, maxConnections));
+    }
+
+    /**
+     * Schedules the requests of the given operation context on the
+     * schedulers of their accounts. It must be the last sending listener of
+     * the context: the SDK only reports the completion of the requests it
+     * sent, so a request that a later listener failed would keep its
+     * connection.
+     *
+     * @param operationContext the operation context.
+     * @param maxConnections the number of connections to an account, if its
+     *          scheduler is created.
+     */
+    static void hook(OperationContext operationContext, int maxConnections) {
+        // The requests holding a connection. A context may send several
+        // requests at once; the SDK streams share theirs.
+        Map<RequestResult, RequestScheduler> scheduled = new ConcurrentHashMap<>();
+        operationContext.getSendingRequestEventHandler().addListener(
+                new StorageEvent<SendingRequestEvent>() {
+                    @Override
+                    public void eventOccurred(SendingRequestEvent eventArg) {
+                        Object connectionObject = eventArg.getConnectionObject();
+                        if (!(connectionObject instanceof HttpURLConnection)) {
+                            return;
+                        }
+                        HttpURLConnection connection = (HttpURLConnection) connectionObject;
+                        URL url = connection.getURL();
+                        RequestScheduler scheduler = forAccount(url.getHost(), maxConnections);
+                        if (scheduler.acquire(priority(connection), url.getPath())) {
+                            scheduled.put(eventArg.getRequestResult(), scheduler);
+                        }
+                    }
+                });
+        operationContext.getRequestCompletedEventHandler().addListener(
+                new StorageEvent<RequestCompletedEvent>() {
+                    @Override
+                    public void eventOccurred(RequestCompletedEvent eventArg) {
+                        RequestScheduler scheduler = scheduled.remove(eventArg.getRequestResult());
+                        if (scheduler != null) {
+                            scheduler.release();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Returns the priority of a request: reads and writes of blob data are
+     * transfers, all other requests are metadata.
+     */
+    static Priority priority(HttpURLConnection connection) {
+        String method = connection.getRequestMethod();
+        String comp = UploadConcurrencyController.queryParameter(
+                connection.getURL().getQuery(), "comp");
+        if ("GET".equals(method)) {
+            return comp == null ? Priority.TRANSFER : Priority.METADATA;
+        }
+        if ("PUT".equals(method)) {
+            if ("block".equals(comp) || "page".equals(comp) || "appendblock".equals(comp)) {
+                return Priority.TRANSFER;
+            }
+            if (comp == null) {
+                String length = connection.getRequestProperty(
+                        Constants.HeaderConstants.CONTENT_LENGTH);
+                if (length != null && !"0".equals(length)) {
+                    return Priority.TRANSFER;
+                }
+            }
+        }
+        return Priority.METADATA;
+    }
+
+    /**
+     * Waits for a connection.
+     *
+     * @param priority the priority of the request.
+     * @param blob the path of the blob of the request.
+     * @return whether the request got a connection, which it must release;
+     *          if the thread is interrupted it is sent without one.
+     */
+    synchronized boolean acquire(Priority priority, String blob) {
+        if (waitingCount == 0 && activeConnections < maxConnections) {
+            activeConnections++;
+            return true;
+        }
+        Ticket ticket = new Ticket();
+        LinkedHashMap<String, Deque<Ticket>> queue =
+                priority == Priority.METADATA ? metadataQueue : transferQueue;
+        queue.computeIfAbsent(blob, b -> new ArrayDeque<>()).addLast(ticket);
+        waitingCount++;
+        waitCount++;
+        long start = Time.monotonicNow();
+        try {
+            while (!ticket.granted) {
+                wait();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (ticket.granted) {
+                return true;
+            }
+            Deque<Ticket> tickets = queue.get(blob);
+            tickets.remove(ticket);
+            if (tickets.isEmpty()) {
+                queue.remove(blob);
+            }
+            waitingCount--;
+            LOG.debug("Interrupted while waiting for a connection to {}", account);
+            return false;
+        } finally {
+            waitTimeMs += Time.monotonicNow() - start;
+        }
+    }
+
+    /**
+     * Gives back the connection of a completed request.
+     */
+    synchronized void release() {
+        activeConnections--;
+        boolean granted = false;
+        while (activeConnections < maxConnections && waitingCount > 0) {
+            boolean metadata = !metadataQueue.isEmpty()
+                    && (transferQueue.isEmpty() || metadataStreak < METADATA_BURST);
+            if (metadata) {
+                metadataStreak++;
+            } else {
+                metadataStreak = 0;
+            }
+            next(metadata ? metadataQueue : transferQueue).granted = true;
+            waitingCount--;
+            activeConnections++;
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Takes the next request of the blob served least recently.
+     */
+    private static Ticket next(LinkedHashMap<String, Deque<Ticket>> queue) {
+        Iterator<Map.Entry<String, Deque<Ticket>>> blobs = queue.entrySet().iterator();
+        Map.Entry<String, Deque<Ticket>> first = blobs.next();
+        blobs.remove();
+        Ticket ticket = first.getValue().pollFirst();
+        if (!first.getValue().isEmpty()) {
+            queue.put(first.getKey(), first.getValue());
+        }
+        return ticket;
+    }
+
+    /**
+     * @return the number of requests that waited for a connection.
+     */
+    synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    /**
+     * @return the time requests waited for a connection, in milliseconds.
+     */
+    synchronized long getWaitTimeMillis() {
+        return waitTimeMs;
+    }
+
+    /**
+     * @return the schedulers of the JVM.
+     */
+    static Collection<RequestScheduler> getSchedulers() {
+        return Collections.unmodifiableCollection(SCHEDULERS.values());
+    }
+
+    private static final class Ticket {
+        private boolean granted;
+    }
+}
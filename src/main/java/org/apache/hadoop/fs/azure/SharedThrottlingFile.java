@@ -0,0 +1,374 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.azure.storage.RequestResult;
+
+/**
+ * The throttling budgets of the accounts, in a memory-mapped file shared by
+ * the JVMs of a node, so that they converge together on the rate an account
+ * sustains instead of each backing off and surging on its own.
+ *
+ * The file holds a fixed number of slots, one per budget, found by a hash of
+ * the account and the kind of requests. A slot holds the rate of the budget,
+ * the time at which the next request may be sent, and the counters of the
+ * current one-second window: the requests sent and whether any was
+ * throttled. Every JVM takes its requests from the same schedule and reports
+ * its responses to the same slot, with compare-and-swap operations on the
+ * mapped memory, like the short-circuit read slots of HDFS, so a JVM that
+ * dies never leaves a slot locked. Times are wall clock times, the only
+ * clock the JVMs share; if the clock steps back, the current window starts
+ * over, and no request waits for a schedule more than
+ * {@value #MAX_SCHEDULE_AHEAD_MS} ms ahead.
+ *
+ * A budget not used for a while goes back to not limiting, so a file left by
+ * an earlier job does not throttle the next one.
+ */
+@InterfaceAudience.Private
+final class SharedThrottlingFile {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedThrottlingFile.class);
+
+    // "WASBTHR1", written first in the file.
+    private static final long MAGIC = 0x5741534254485231L;
+    static final int SLOT_COUNT = 256;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 128;
+    static final int FILE_SIZE = HEADER_SIZE + SLOT_COUNT * SLOT_SIZE;
+    // A budget unused this long no longer limits.
+    static final long IDLE_RESET_MS = 60 * 1000;
+    // The furthest ahead of the clock the schedule of a budget goes; beyond
+    // that the clock stepped back.
+    static final long MAX_SCHEDULE_AHEAD_MS = 10 * 1000;
+
+    // The fields of a slot. Rates are in thousandths of requests per second,
+    // 0 meaning no limit; times are in milliseconds, or microseconds for the
+    // schedule, since the epoch; latencies are the bits of doubles.
+    private static final int KEY = 0;
+    private static final int RATE = 8;
+    private static final int NEXT_REQUEST = 16;
+    private static final int RECOVERY_RATE = 24;
+    private static final int LAST_DECREASE = 32;
+    private static final int WINDOW_START = 40;
+    private static final int WINDOW_REQUESTS = 48;
+    private static final int WINDOW_THROTTLED = 56;
+    private static final int REQUEST_RATE = 64;
+    private static final int DECREASE_COUNT = 72;
+    private static final int LATENCY = 80;
+    private static final int USUAL_LATENCY = 88;
+
+    private static final long RATE_SCALE = 1000;
+
+    private final Path path;
+    private final MappedLongs memory;
+
+    private SharedThrottlingFile(Path path, MappedLongs memory) {
+        this.path = path;
+        this.memory = memory;
+    }
+
+    /**
+     * Maps the given file, creating it if needed.
+     *
+     * @throws IOException if the file cannot be mapped or was not created by
+     *           this class.
+     */
+    static SharedThrottlingFile open(String file) throws IOException {
+        Path path = Paths.get(file).toAbsolutePath();
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        MappedLongs memory;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                // Under the lock, a JVM that finds the file empty creates
+                // it and the others find it created.
+                long size = channel.size();
+                if (size != 0 && size != FILE_SIZE) {
+                    throw new IOException(path + " is not a throttling file");
+                }
+                // Mapping past the end extends the file with zeros, which
+                // every JVM reads as empty slots.
+                memory = new MappedLongs(
+                        channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE));
+                if (size == 0) {
+                    memory.set(0, MAGIC);
+                } else if (memory.get(0) != MAGIC) {
+                    throw new IOException(path + " is not a throttling file");
+                }
+            } finally {
+                lock.release();
+            }
+        }
+        SharedThrottlingFile shared = new SharedThrottlingFile(path, memory);
+        LOG.debug("Sharing the throttling of the accounts through {}", path);
+        return shared;
+    }
+
+    /**
+     * Returns the budget of the given kind of requests to an account.
+     *
+     * @return the budget, or null if the file has no room left for it.
+     */
+    AccountThrottler.Budget getBudget(String account, String kind) {
+        long key = key(account, kind);
+        long first = Long.remainderUnsigned(key, SLOT_COUNT);
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            long slot = HEADER_SIZE + ((first + i) % SLOT_COUNT) * SLOT_SIZE;
+            long slotKey = get(slot + KEY);
+            if (slotKey == key
+                    || (slotKey == 0 && (compareAndSet(slot + KEY, 0, key)
+                            || get(slot + KEY) == key))) {
+                return new SharedBudget(account + " " + kind, slot);
+            }
+        }
+        return null;
+    }
+
+    private static long key(String account, String kind) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(account.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            digest.update(kind.getBytes(StandardCharsets.UTF_8));
+            // 0 marks an empty slot.
+            long key = ByteBuffer.wrap(digest.digest()).getLong();
+            return key == 0 ? 1 : key;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private long get(long offset) {
+        return memory.get(offset);
+    }
+
+    private void set(long offset, long value) {
+        memory.set(offset, value);
+    }
+
+    private boolean compareAndSet(long offset, long expected, long value) {
+        return memory.compareAndSet(offset, expected, value);
+    }
+
+    private long getAndAdd(long offset, long delta) {
+        return memory.getAndAdd(offset, delta);
+    }
+
+    private long getAndSet(long offset, long value) {
+        return memory.getAndSet(offset, value);
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+
+    /**
+     * A budget in a slot of the file. It follows the same rules as the
+     * budgets of a JVM; each change is made by whichever JVM gets to it
+     * first.
+     */
+    private final class SharedBudget extends AccountThrottler.Budget {
+        private final String name;
+        private final long slot;
+        // The delays of the requests of this JVM.
+        private final AtomicLong delayMs = new AtomicLong();
+
+        SharedBudget(String name, long slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @Override
+        long reserve() {
+            long now = System.currentTimeMillis();
+            roll(now);
+            getAndAdd(slot + WINDOW_REQUESTS, 1);
+            long rate = get(slot + RATE);
+            if (rate == 0) {
+                return 0;
+            }
+            long interval = RATE_SCALE * 1000 * 1000 / rate;
+            long nowMicros = now * 1000;
+            long next;
+            long start;
+            do {
+                next = get(slot + NEXT_REQUEST);
+                start = Math.min(Math.max(next, nowMicros),
+                        nowMicros + MAX_SCHEDULE_AHEAD_MS * 1000);
+            } while (!compareAndSet(slot + NEXT_REQUEST, next, start + interval));
+            long wait = (start - nowMicros + 999) / 1000;
+            if (wait > 0) {
+                delayMs.addAndGet(wait);
+            }
+            return wait;
+        }
+
+        @Override
+        void responseReceived(RequestResult result) {
+            long now = System.currentTimeMillis();
+            roll(now);
+            if (isThrottled(result)) {
+                throttled(now);
+                return;
+            }
+            long latency = latencyMillis(result);
+            if (latency >= 0) {
+                double average = updateDouble(slot + LATENCY, latency, LATENCY_WEIGHT);
+                long bits;
+                double usual;
+                do {
+                    bits = get(slot + USUAL_LATENCY);
+                    usual = Math.min(average,
+                            average(Double.longBitsToDouble(bits), average, BASELINE_WEIGHT));
+                } while (!compareAndSet(slot + USUAL_LATENCY, bits,
+                        Double.doubleToRawLongBits(usual)));
+            }
+        }
+
+        private double updateDouble(long offset, double value, double weight) {
+            long bits;
+            double updated;
+            do {
+                bits = get(offset);
+                updated = average(Double.longBitsToDouble(bits), value, weight);
+            } while (!compareAndSet(offset, bits, Double.doubleToRawLongBits(updated)));
+            return updated;
+        }
+
+        private double latencyMs() {
+            return Double.longBitsToDouble(get(slot + LATENCY));
+        }
+
+        private void throttled(long now) {
+            set(slot + WINDOW_THROTTLED, 1);
+            long lastDecrease = get(slot + LAST_DECREASE);
+            long sinceDecrease = now - lastDecrease;
+            // A decrease in the future is from before the clock stepped back.
+            if ((sinceDecrease >= 0 && sinceDecrease < Math.max(SECOND_MS, latencyMs()))
+                    || !compareAndSet(slot + LAST_DECREASE, lastDecrease, now)) {
+                // Lowered recently, by this JVM or another.
+                return;
+            }
+            long rate;
+            long lowered;
+            long current;
+            do {
+                rate = get(slot + RATE);
+                current = rate != 0 ? rate : Math.max(get(slot + REQUEST_RATE),
+                        requestRate(get(slot + WINDOW_REQUESTS),
+                                now - get(slot + WINDOW_START)));
+                lowered = Math.max((long) (MIN_RATE * RATE_SCALE),
+                        (long) (current * DECREASE_FACTOR));
+            } while (!compareAndSet(slot + RATE, rate, lowered));
+            set(slot + RECOVERY_RATE, current);
+            long next;
+            do {
+                next = get(slot + NEXT_REQUEST);
+            } while (next < now * 1000
+                    && !compareAndSet(slot + NEXT_REQUEST, next, now * 1000));
+            getAndAdd(slot + DECREASE_COUNT, 1);
+            LOG.debug("Throttling {} to {} requests per second", name, lowered / RATE_SCALE);
+        }
+
+        /**
+         * Ends the window of one second of requests of the node, if it is
+         * over, and adapts the rate to it.
+         */
+        private void roll(long now) {
+            long windowStart = get(slot + WINDOW_START);
+            long elapsed = now - windowStart;
+            if ((elapsed >= 0 && elapsed < SECOND_MS)
+                    || !compareAndSet(slot + WINDOW_START, windowStart, now)) {
+                return;
+            }
+            if (elapsed < 0) {
+                // The clock stepped back; the window starts over, and tells
+                // nothing about the rate.
+                set(slot + WINDOW_REQUESTS, 0);
+                set(slot + WINDOW_THROTTLED, 0);
+                return;
+            }
+            long requestRate = requestRate(getAndSet(slot + WINDOW_REQUESTS, 0), elapsed);
+            boolean throttled = getAndSet(slot + WINDOW_THROTTLED, 0) != 0;
+            set(slot + REQUEST_RATE, requestRate);
+            long rate = get(slot + RATE);
+            if (rate == 0) {
+                return;
+            }
+            if (elapsed >= IDLE_RESET_MS) {
+                compareAndSet(slot + RATE, rate, 0);
+                return;
+            }
+            double usual = Double.longBitsToDouble(get(slot + USUAL_LATENCY));
+            if (throttled || (usual != 0 && latencyMs() > LATENCY_FACTOR * usual)) {
+                return;
+            }
+            long raised = rate + Math.max((long) (MIN_RATE * RATE_SCALE),
+                    (long) (get(slot + RECOVERY_RATE) * INCREASE_STEP));
+            if (raised >= UNLIMITED_HEADROOM * requestRate) {
+                LOG.debug("Stopped throttling {}", name);
+                raised = 0;
+            }
+            compareAndSet(slot + RATE, rate, raised);
+        }
+
+        private long requestRate(long requests, long elapsedMs) {
+            return requests * SECOND_MS * RATE_SCALE / Math.max(1, elapsedMs);
+        }
+
+        @Override
+        double getRate() {
+            long rate = get(slot + RATE);
+            return rate == 0 ? Double.POSITIVE_INFINITY : (double) rate / RATE_SCALE;
+        }
+
+        /**
+         * @return the number of times the rate was lowered, by any JVM.
+         */
+        @Override
+        long getDecreaseCount() {
+            return get(slot + DECREASE_COUNT);
+        }
+
+        @Override
+        long getDelayMillis() {
+            return delayMs.get();
+        }
+    }
+}
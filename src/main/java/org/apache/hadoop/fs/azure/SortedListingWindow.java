@@ -0,0 +1,243 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import static org.apache.hadoop.fs.azure.NativeAzureFileSystem.PATH_DELIMITER;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.fs.permission.PermissionStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the blobs and blob prefixes of one directory level of a
+ * hierarchical listing into a sorted, duplicate-free sequence of entries in
+ * a single pass.
+ *
+ * The service returns the items of a level in lexicographic order, where a
+ * blob prefix sorts as its name followed by the delimiter. The directory
+ * entry for prefix "a/" is "a", which sorts before items such as "a-b" or
+ * "a.txt" that the service returned before the prefix. A directory backed by
+ * a marker blob "a" appears both as the blob and as the prefix; the blob is
+ * preferred because it carries properties and permissions.
+ *
+ * To handle both cases, an entry is held back only while a later prefix could
+ * still produce a directory entry that sorts before it or duplicates it. That
+ * window is usually a handful of entries. It is capped; entries evicted past
+ * the cap are emitted early, which keeps de-duplication exact but may leave a
+ * late implicit directory out of order.
+ */
+@InterfaceAudience.Private
+final class SortedListingWindow {
+    private static final Logger LOG = LoggerFactory.getLogger(SortedListingWindow.class);
+
+    static final int DEFAULT_MAX_WINDOW_SIZE = 1024;
+
+    private final int baseLength;
+    private final boolean holdForDirectories;
+    private final int maxWindowSize;
+
+    private final TreeMap<String, Entry> window = new TreeMap<>();
+    // Keys emitted early whose duplicate prefix could still arrive.
+    private final TreeSet<String> evictedKeys = new TreeSet<>();
+
+    /**
+     * @param baseLength the length of the directory prefix (including the
+     *          trailing delimiter) that all keys of this level share.
+     * @param holdForDirectories whether prefixes of this level produce
+     *          directory entries. If not, entries are passed through as they
+     *          arrive, since the listing order is already sorted.
+     * @param maxWindowSize the maximum number of entries held back.
+     */
+    SortedListingWindow(int baseLength, boolean holdForDirectories,
+                        int maxWindowSize) {
+        this.baseLength = baseLength;
+        this.holdForDirectories = holdForDirectories;
+        this.maxWindowSize = maxWindowSize;
+    }
+
+    /**
+     * Offers a listed blob. Entries that can no longer be preceded by a later
+     * entry are appended to the output.
+     */
+    void addBlob(Entry entry, CompactFileMetadataList output) {
+        if (!holdForDirectories) {
+            entry.appendTo(output);
+            return;
+        }
+        advanceTo(entry.key, output);
+        entry.releaseKey = releaseKey(entry.key);
+        window.put(entry.key, entry);
+        while (window.size() > maxWindowSize) {
+            Entry evicted = window.pollFirstEntry().getValue();
+            LOG.debug("Listing window full, emitting {} early", evicted.key);
+            evictedKeys.add(evicted.key);
+            evicted.appendTo(output);
+        }
+    }
+
+    /**
+     * Offers a blob prefix. Adds the directory entry unless a blob with the
+     * same key was listed, then appends every entry that sorts before the
+     * contents of the prefix, so that the caller can append those next.
+     *
+     * @param dirKey the key of the directory, without trailing delimiter.
+     * @param directoryEntry the entry to add for the directory, or null if
+     *          this prefix does not produce a directory entry.
+     * @return true if the directory entry was added.
+     */
+    boolean addPrefix(String dirKey, Entry directoryEntry,
+                      CompactFileMetadataList output) {
+        boolean added = false;
+        if (directoryEntry != null) {
+            if (!holdForDirectories) {
+                directoryEntry.appendTo(output);
+                added = true;
+            } else if (!window.containsKey(dirKey) && !evictedKeys.contains(dirKey)) {
+                directoryEntry.releaseKey = releaseKey(dirKey);
+                window.put(dirKey, directoryEntry);
+                added = true;
+            }
+        }
+        if (holdForDirectories) {
+            advanceTo(dirKey + PATH_DELIMITER, output);
+        }
+        return added;
+    }
+
+    /**
+     * Appends all the entries still held back.
+     */
+    void finish(CompactFileMetadataList output) {
+        for (Entry entry : window.values()) {
+            entry.appendTo(output);
+        }
+        window.clear();
+        evictedKeys.clear();
+    }
+
+    /**
+     * Emits the held entries that cannot be preceded by anything at or after
+     * the given listing position.
+     */
+    private void advanceTo(String position, CompactFileMetadataList output) {
+        while (!window.isEmpty()) {
+            Map.Entry<String, Entry> first = window.firstEntry();
+            if (first.getValue().releaseKey.compareTo(position) > 0) {
+                break;
+            }
+            window.pollFirstEntry();
+            first.getValue().appendTo(output);
+        }
+        if (!evictedKeys.isEmpty()) {
+            Iterator<String> keys = evictedKeys.iterator();
+            while (keys.hasNext()) {
+                if ((keys.next() + PATH_DELIMITER).compareTo(position) <= 0) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the listing position after which nothing can sort before or
+     * duplicate the given key. A prefix "y/" listed later produces the entry
+     * "y", which sorts before the key only if "y" is a proper prefix of the
+     * key followed by a character below the delimiter. The shortest such
+     * prefix gives the latest position; without one, the only later prefix
+     * that matters is the key's own.
+     */
+    private String releaseKey(String key) {
+        for (int i = baseLength + 1; i < key.length(); i++) {
+            if (key.charAt(i) < PATH_DELIMITER.charAt(0)) {
+                return key.substring(0, i) + PATH_DELIMITER;
+            }
+        }
+        return key + PATH_DELIMITER;
+    }
+
+    /**
+     * A listed entry that has not been added to a listing yet.
+     */
+    static final class Entry {
+        private final String key;
+        private final long length;
+        private final Future<Long> pendingLength;
+        private final long modificationTime;
+        private final PermissionStatus permissionStatus;
+        private final boolean directory;
+        private final BlobMaterialization materialization;
+        private String releaseKey;
+
+        private Entry(String key, long length, Future<Long> pendingLength,
+                      long modificationTime, PermissionStatus permissionStatus,
+                      boolean directory, BlobMaterialization materialization) {
+            this.key = key;
+            this.length = length;
+            this.pendingLength = pendingLength;
+            this.modificationTime = modificationTime;
+            this.permissionStatus = permissionStatus;
+            this.directory = directory;
+            this.materialization = materialization;
+        }
+
+        static Entry file(String key, long length, long modificationTime,
+                          PermissionStatus permissionStatus) {
+            return new Entry(key, length, null, modificationTime,
+                    permissionStatus, false, BlobMaterialization.Explicit);
+        }
+
+        /**
+         * Returns the entry for a file whose length is still being resolved.
+         */
+        static Entry file(String key, Future<Long> pendingLength,
+                          long modificationTime, PermissionStatus permissionStatus) {
+            return new Entry(key, -1, pendingLength, modificationTime,
+                    permissionStatus, false, BlobMaterialization.Explicit);
+        }
+
+        static Entry directory(String key, long modificationTime,
+                               PermissionStatus permissionStatus,
+                               BlobMaterialization materialization) {
+            return new Entry(key, 0, null, modificationTime, permissionStatus,
+                    true, materialization);
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        void appendTo(CompactFileMetadataList output) {
+            if (directory) {
+                output.addDirectory(key, modificationTime, permissionStatus,
+                        materialization);
+            } else if (pendingLength != null) {
+                output.addFile(key, pendingLength, modificationTime, permissionStatus);
+            } else {
+                output.addFile(key, length, modificationTime, permissionStatus);
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.LocalDirAllocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The blocks that {@link BlockBlobUploadStream} buffers data in until they
+ * are uploaded: buffers of a {@link BufferPool}, or local files.
+ */
+@InterfaceAudience.Private
+final class UploadBlocks {
+    private static final Logger LOG = LoggerFactory.getLogger(UploadBlocks.class);
+
+    // The heap buffer in front of the file of a disk block.
+    private static final int DISK_WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private UploadBlocks() {
+    }
+
+    /**
+     * Creates the blocks of the streams.
+     */
+    interface Factory {
+        Block create(int capacity) throws IOException;
+    }
+
+    /**
+     * A block being filled, then uploaded.
+     */
+    abstract static class Block {
+        private final int capacity;
+        private int size;
+
+        Block(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Writes as much of the given data as fits.
+         *
+         * @return the number of bytes written.
+         */
+        final int write(byte[] b, int off, int len) throws IOException {
+            int count = Math.min(len, capacity - size);
+            doWrite(b, off, count);
+            size += count;
+            return count;
+        }
+
+        final int size() {
+            return size;
+        }
+
+        final boolean isFull() {
+            return size == capacity;
+        }
+
+        abstract void doWrite(byte[] b, int off, int len) throws IOException;
+
+        /**
+         * Ends the writes and returns the data of the block. The stream can
+         * be reset, so that the storage SDK can compute its MD5 and retry
+         * the upload without copying it.
+         */
+        abstract InputStream startUpload() throws IOException;
+
+        /**
+         * Releases the resources of the block, once uploaded or abandoned.
+         */
+        abstract void release();
+    }
+
+    /**
+     * Returns a factory of blocks held in buffers of the given pool.
+     */
+    static Factory pooled(BufferPool pool) {
+        return capacity -> new PooledBlock(pool, pool.acquire(capacity));
+    }
+
+    /**
+     * Returns a factory of blocks held in local files, in the directories of
+     * the given configuration key or of {@code hadoop.tmp.dir} if it is not
+     * set.
+     */
+    static Factory disk(Configuration conf, String directoryKey) {
+        String key = conf.get(directoryKey) != null ? directoryKey : "hadoop.tmp.dir";
+        LocalDirAllocator allocator = new LocalDirAllocator(key);
+        return capacity -> new DiskBlock(capacity,
+                allocator.createTmpFileForWrite("azure-block-", capacity, conf));
+    }
+
+    private static final class PooledBlock extends Block {
+        private final BufferPool pool;
+        private final ByteBuffer buffer;
+
+        PooledBlock(BufferPool pool, ByteBuffer buffer) {
+            super(buffer.capacity());
+            this.pool = pool;
+            this.buffer = buffer;
+        }
+
+        @Override
+        void doWrite(byte[] b, int off, int len) {
+            buffer.put(b, off, len);
+        }
+
+        @Override
+        InputStream startUpload() {
+            buffer.flip();
+            return new ByteBufferInputStream(buffer);
+        }
+
+        @Override
+        void release() {
+            pool.release(buffer);
+        }
+    }
+
+    private static final class DiskBlock extends Block {
+        private final File file;
+        private final OutputStream out;
+
+        DiskBlock(int capacity, File file) throws IOException {
+            super(capacity);
+            this.file = file;
+            this.out = new BufferedOutputStream(new FileOutputStream(file),
+                    DISK_WRITE_BUFFER_SIZE);
+        }
+
+        @Override
+        void doWrite(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        InputStream startUpload() throws IOException {
+            out.close();
+            return new FileBlockInputStream(file);
+        }
+
+        @Override
+        void release() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.debug("Failed to close {}", file, e);
+            }
+            if (!file.delete() && file.exists()) {
+                LOG.warn("Failed to delete upload block {}", file);
+            }
+        }
+    }
+
+    /**
+     * Reads the data of a pooled block.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+            this.buffer.mark();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.reset();
+        }
+    }
+
+    /**
+     * Reads the file of a disk block; a reset seeks back in the file rather
+     * than buffering the data read since the mark.
+     */
+    private static final class FileBlockInputStream extends InputStream {
+        private final RandomAccessFile file;
+        private long mark;
+
+        FileBlockInputStream(File file) throws IOException {
+            this.file = new RandomAccessFile(file, "r");
+        }
+
+        @Override
+        public int read() throws IOException {
+            return file.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return file.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long position = file.getFilePointer();
+            long target = Math.min(file.length(), position + Math.max(0, n));
+            file.seek(target);
+            return target - position;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, file.length() - file.getFilePointer());
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            try {
+                mark = file.getFilePointer();
+            } catch (IOException e) {
+                mark = -1;
+            }
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            if (mark < 0) {
+                throw new IOException("No valid mark to reset to");
+            }
+            file.seek(mark);
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
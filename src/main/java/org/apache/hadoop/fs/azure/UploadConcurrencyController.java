@@ -0,0 +1,355 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.util.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.azure.storage.Constants;
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.RequestResult;
+import com.microsoft.azure.storage.ResponseReceivedEvent;
+import com.microsoft.azure.storage.RetryingEvent;
+import com.microsoft.azure.storage.StorageEvent;
+
+/**
+ * Adapts the number of blocks uploaded at a time, per stream and for all the
+ * streams of a file system, to the bandwidth the account gives.
+ *
+ * The limits follow AIMD: the controller measures the upload throughput over
+ * windows of about one round of uploads, and raises the limits by one as long
+ * as the throughput of a window improves on the previous one, or until they
+ * are back to where they were last lowered from; when an upload
+ * is answered with 503 or 500, or times out, it halves them, at most once
+ * per upload latency, since the uploads in flight when the limits are
+ * lowered are throttled too. It learns about the uploads from the response
+ * events of the operation contexts it is hooked to, like the metric updater,
+ * so it sees the requests of the output stream of the storage SDK as well as
+ * those of {@link BlockBlobUploadStream}.
+ *
+ * Only {@link BlockBlobUploadStream} waits for the global limit; the stream
+ * of the SDK takes the stream limit when it is opened.
+ */
+@InterfaceAudience.Private
+final class UploadConcurrencyController {
+    private static final Logger LOG = LoggerFactory.getLogger(UploadConcurrencyController.class);
+
+    // A window lasts at least this long, and until as many uploads as the
+    // stream limit completed.
+    static final long MIN_WINDOW_MS = 200;
+    // The weight of the latest upload in the average upload latency.
+    private static final double LATENCY_WEIGHT = 0.2;
+    // A window improves on the previous one if its throughput is this much
+    // higher; smaller changes are noise.
+    static final double MIN_IMPROVEMENT = 0.05;
+    // After this many windows without improvement, the limits are raised
+    // anyway, to find out whether more bandwidth became available.
+    static final int PROBE_WINDOWS = 20;
+
+    private final boolean adaptive;
+    private final int maxStreamLimit;
+    private final int maxGlobalLimit;
+
+    private int streamLimit;
+    private int globalLimit;
+    private int inFlight;
+
+    private long windowStart = Time.monotonicNow();
+    private long windowBytes;
+    private int windowUploads;
+    private boolean windowThrottled;
+    private boolean globalSaturated;
+    // The throughput of the previous window, or -1 if it is to be measured.
+    private double lastThroughput = -1;
+    private int flatWindows;
+    private double uploadLatencyMs;
+    private long lastDecrease;
+    // The limits before they were last lowered.
+    private int streamRecoveryLimit;
+    private int globalRecoveryLimit;
+
+    private long decreaseCount;
+
+    /**
+     * @param adaptive whether the limits adapt; if not they stay at their
+     *          initial value.
+     * @param streamLimit the initial number of uploads of a stream at a time.
+     * @param maxStreamLimit the number of uploads of a stream at a time at
+     *          most.
+     * @param globalLimit the initial and largest number of uploads of all
+     *          the streams at a time.
+     */
+    UploadConcurrencyController(boolean adaptive, int streamLimit, int maxStreamLimit,
+                                int globalLimit) {
+        this.adaptive = adaptive;
+        this.maxStreamLimit = Math.max(1, maxStreamLimit);
+        this.maxGlobalLimit = Math.max(1, globalLimit);
+        this.streamLimit = Math.max(1, Math.min(streamLimit, this.maxStreamLimit));
+        this.globalLimit = this.maxGlobalLimit;
+    }
+
+    /**
+     * The uploads of one stream in flight.
+     */
+    static final class Slots {
+        private int inFlight;
+    }
+
+    /**
+     * Listens to the upload requests of the given operation context.
+     *
+     * @return the operation context.
+     */
+    OperationContext hook(OperationContext operationContext) {
+        if (!adaptive) {
+            return operationContext;
+        }
+        operationContext.getResponseReceivedEventHandler().addListener(
+                new StorageEvent<ResponseReceivedEvent>() {
+                    @Override
+                    public void eventOccurred(ResponseReceivedEvent eventArg) {
+                        responseReceived(eventArg.getConnectionObject(),
+                                eventArg.getRequestResult());
+                    }
+                });
+        operationContext.getRetryingEventHandler().addListener(
+                new StorageEvent<RetryingEvent>() {
+                    @Override
+                    public void eventOccurred(RetryingEvent eventArg) {
+                        retrying(eventArg.getConnectionObject(),
+                                eventArg.getRetryContext().getLastRequestResult());
+                    }
+                });
+        return operationContext;
+    }
+
+    private void responseReceived(Object connectionObject, RequestResult result) {
+        if (!(connectionObject instanceof HttpURLConnection)) {
+            return;
+        }
+        HttpURLConnection connection = (HttpURLConnection) connectionObject;
+        if (!isBlockUpload(connection)) {
+            return;
+        }
+        int status = result.getStatusCode();
+        if (status == HttpURLConnection.HTTP_UNAVAILABLE
+                || status == HttpURLConnection.HTTP_INTERNAL_ERROR) {
+            throttled();
+        } else if (status >= 200 && status < 300) {
+            long bytes = getRequestContentLength(connection);
+            if (bytes > 0) {
+                long latency = result.getStartDate() != null && result.getStopDate() != null
+                        ? result.getStopDate().getTime() - result.getStartDate().getTime()
+                        : 0;
+                uploaded(bytes, latency);
+            }
+        }
+    }
+
+    private void retrying(Object connectionObject, RequestResult lastResult) {
+        if (!(connectionObject instanceof HttpURLConnection)
+                || !isBlockUpload((HttpURLConnection) connectionObject)
+                || lastResult == null) {
+            return;
+        }
+        // Throttling responses were seen when they were received.
+        for (Throwable t = lastResult.getException(); t != null; t = t.getCause()) {
+            if (t instanceof SocketTimeoutException) {
+                throttled();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns whether a request uploads blob data in blocks: Put Block, or
+     * Put Blob with a body, which the SDK uses for blobs of a single block.
+     * Block lists, page writes and the other PUT requests do not tell how
+     * fast blocks upload.
+     */
+    static boolean isBlockUpload(HttpURLConnection connection) {
+        if (!"PUT".equals(connection.getRequestMethod())) {
+            return false;
+        }
+        String comp = queryParameter(connection.getURL().getQuery(), "comp");
+        if (comp == null) {
+            return getRequestContentLength(connection) > 0;
+        }
+        return "block".equals(comp);
+    }
+
+    private static long getRequestContentLength(HttpURLConnection connection) {
+        String length = connection.getRequestProperty(
+                Constants.HeaderConstants.CONTENT_LENGTH);
+        if (length == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(length);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the value of a parameter of a request query, or null.
+     */
+    static String queryParameter(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith(name + "=")) {
+                return parameter.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of blocks a stream uploads at a time at most.
+     */
+    synchronized int getStreamLimit() {
+        return streamLimit;
+    }
+
+    /**
+     * @return the number of blocks the streams upload at a time at most.
+     */
+    synchronized int getGlobalLimit() {
+        return globalLimit;
+    }
+
+    /**
+     * @return the number of times the limits were lowered.
+     */
+    synchronized long getDecreaseCount() {
+        return decreaseCount;
+    }
+
+    /**
+     * Waits until the given stream may upload one more block.
+     */
+    synchronized void acquire(Slots slots) throws InterruptedIOException {
+        while (slots.inFlight >= streamLimit || inFlight >= globalLimit) {
+            if (inFlight >= globalLimit) {
+                globalSaturated = true;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to upload");
+            }
+        }
+        slots.inFlight++;
+        inFlight++;
+    }
+
+    /**
+     * Ends an upload of the given stream.
+     */
+    synchronized void release(Slots slots) {
+        slots.inFlight--;
+        inFlight--;
+        notifyAll();
+    }
+
+    private synchronized void uploaded(long bytes, long latencyMs) {
+        uploadLatencyMs = uploadLatencyMs == 0 ? latencyMs
+                : (1 - LATENCY_WEIGHT) * uploadLatencyMs + LATENCY_WEIGHT * latencyMs;
+        windowBytes += bytes;
+        windowUploads++;
+        long now = Time.monotonicNow();
+        long elapsed = now - windowStart;
+        if (elapsed < MIN_WINDOW_MS || windowUploads < streamLimit) {
+            return;
+        }
+        if (windowThrottled) {
+            // The limits were lowered during the window; its throughput is
+            // not a baseline.
+            startWindow(now, -1);
+            return;
+        }
+        double throughput = windowBytes * 1000.0 / elapsed;
+        if (lastThroughput >= 0) {
+            boolean improved = throughput > lastThroughput * (1 + MIN_IMPROVEMENT);
+            if (improved || ++flatWindows >= PROBE_WINDOWS) {
+                flatWindows = 0;
+                increase(true);
+            } else {
+                increase(false);
+            }
+        }
+        startWindow(now, throughput);
+    }
+
+    /**
+     * Raises the limits by one; if the throughput did not improve, only up
+     * to where they were last lowered from.
+     */
+    private void increase(boolean improved) {
+        int oldStreamLimit = streamLimit;
+        int oldGlobalLimit = globalLimit;
+        if (improved || streamLimit < streamRecoveryLimit) {
+            streamLimit = Math.min(maxStreamLimit, streamLimit + 1);
+        }
+        if (globalSaturated && (improved || globalLimit < globalRecoveryLimit)) {
+            globalLimit = Math.min(maxGlobalLimit, globalLimit + 1);
+        }
+        if (streamLimit != oldStreamLimit || globalLimit != oldGlobalLimit) {
+            LOG.debug("Raised the upload concurrency to {} per stream, {} in all",
+                    streamLimit, globalLimit);
+            notifyAll();
+        }
+    }
+
+    private synchronized void throttled() {
+        long now = Time.monotonicNow();
+        windowThrottled = true;
+        if (decreaseCount > 0
+                && now - lastDecrease < Math.max(MIN_WINDOW_MS, uploadLatencyMs)) {
+            return;
+        }
+        lastDecrease = now;
+        streamRecoveryLimit = streamLimit;
+        globalRecoveryLimit = globalLimit;
+        streamLimit = Math.max(1, streamLimit / 2);
+        globalLimit = Math.max(1, globalLimit / 2);
+        flatWindows = 0;
+        decreaseCount++;
+        LOG.debug("Lowered the upload concurrency to {} per stream, {} in all",
+                streamLimit, globalLimit);
+    }
+
+    private void startWindow(long now, double throughput) {
+        windowStart = now;
+        windowBytes = 0;
+        windowUploads = 0;
+        windowThrottled = false;
+        globalSaturated = false;
+        lastThroughput = throughput;
+    }
+}
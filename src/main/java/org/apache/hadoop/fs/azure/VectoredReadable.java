@@ -0,0 +1,47 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+/**
+ * A stream that can read many ranges of a blob at once.
+ */
+@InterfaceAudience.Private
+public interface VectoredReadable {
+
+    /**
+     * Starts reading the given ranges. Ranges close to each other are read
+     * with one request, and requests are issued in parallel. The data of each
+     * range is delivered through its {@link ReadRange#getData()} future; a
+     * range that ends past the end of the blob fails with an EOFException.
+     * The position of the stream is not changed.
+     *
+     * @param ranges the ranges to read, which must not overlap.
+     * @param allocate allocates the buffer of a range of the given length.
+     * @throws IllegalArgumentException if ranges overlap.
+     */
+    void readVectored(List<? extends ReadRange> ranges,
+                      IntFunction<ByteBuffer> allocate) throws IOException;
+}
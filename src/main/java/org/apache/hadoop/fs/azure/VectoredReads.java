@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs.azure;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntFunction;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the ranges of vectored reads, see {@link VectoredReadable}.
+ *
+ * Ranges are sorted, and ranges separated by at most a minimum seek size are
+ * merged into one read, up to a maximum merged size, since a request for a
+ * few bytes more costs far less than another request. The merged reads run
+ * on a pool of threads created on first use, and the data of each range is
+ * copied out of its merged read.
+ */
+@InterfaceAudience.Private
+final class VectoredReads implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(VectoredReads.class);
+
+    private final int minSeekSize;
+    private final int maxMergedSize;
+    private final int threads;
+    private ExecutorService executor;
+    private boolean closed;
+
+    /**
+     * Reads a range of a blob.
+     */
+    interface RangeReader {
+        /**
+         * @return exactly the given number of bytes at the given offset.
+         */
+        byte[] read(long offset, int length) throws IOException;
+    }
+
+    /**
+     * @param minSeekSize the largest gap between two ranges read together.
+     * @param maxMergedSize the largest size of ranges read together.
+     * @param threads the number of threads reading. With one thread or
+     *          less, ranges are read in the calling thread.
+     */
+    VectoredReads(int minSeekSize, int maxMergedSize, int threads) {
+        this.minSeekSize = minSeekSize;
+        this.maxMergedSize = maxMergedSize;
+        this.threads = threads;
+    }
+
+    /**
+     * Starts reading the given ranges of a blob.
+     *
+     * @param ranges the ranges to read.
+     * @param allocate allocates the buffer of a range.
+     * @param blobLength the length of the blob.
+     * @param reader reads the merged ranges.
+     * @throws IllegalArgumentException if ranges overlap.
+     */
+    void read(List<? extends ReadRange> ranges, IntFunction<ByteBuffer> allocate,
+              long blobLength, RangeReader reader) throws IOException {
+        List<ReadRange> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(ReadRange::getOffset));
+        for (int i = 1; i < sorted.size(); i++) {
+            ReadRange previous = sorted.get(i - 1);
+            if (sorted.get(i).getOffset() < previous.getOffset() + previous.getLength()) {
+                throw new IllegalArgumentException(String.format(
+                        "Overlapping ranges %s and %s", previous, sorted.get(i)));
+            }
+        }
+
+        List<MergedRange> merged = new ArrayList<>();
+        MergedRange current = null;
+        for (ReadRange range : sorted) {
+            long end = range.getOffset() + range.getLength();
+            if (range.getLength() == 0) {
+                range.getData().complete(allocate.apply(0));
+            } else if (end > blobLength) {
+                range.getData().completeExceptionally(new EOFException(String.format(
+                        "%s is past the end of the blob, of length %d", range, blobLength)));
+            } else if (current != null
+                    && range.getOffset() - current.end() <= minSeekSize
+                    && end - current.offset <= maxMergedSize) {
+                current.ranges.add(range);
+            } else {
+                current = new MergedRange(range);
+                merged.add(current);
+            }
+        }
+        LOG.debug("Reading {} ranges with {} requests", sorted.size(), merged.size());
+
+        for (MergedRange range : merged) {
+            if (threads <= 1) {
+                range.read(reader, allocate);
+                continue;
+            }
+            try {
+                getExecutor().execute(() -> range.read(reader, allocate));
+            } catch (RejectedExecutionException e) {
+                range.fail(new IOException("Vectored reads are closed", e));
+            }
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (closed) {
+            throw new RejectedExecutionException();
+        }
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads,
+                    BoundedTaskExecutor.newDaemonThreadFactory(
+                            "AzureBlobVectoredReadThread-"));
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the threads. Reads that did not start fail.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Ranges read with one request.
+     */
+    private static final class MergedRange {
+        private final long offset;
+        private final List<ReadRange> ranges = new ArrayList<>();
+
+        MergedRange(ReadRange first) {
+            this.offset = first.getOffset();
+            ranges.add(first);
+        }
+
+        long end() {
+            ReadRange last = ranges.get(ranges.size() - 1);
+            return last.getOffset() + last.getLength();
+        }
+
+        void read(RangeReader reader, IntFunction<ByteBuffer> allocate) {
+            byte[] data;
+            try {
+                data = reader.read(offset, (int) (end() - offset));
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                return;
+            }
+            for (ReadRange range : ranges) {
+                try {
+                    ByteBuffer buffer = allocate.apply(range.getLength());
+                    buffer.put(data, (int) (range.getOffset() - offset), range.getLength());
+                    buffer.flip();
+                    range.getData().complete(buffer);
+                } catch (RuntimeException e) {
+                    range.getData().completeExceptionally(e);
+                }
+            }
+        }
+
+        void fail(Exception e) {
+            for (ReadRange range : ranges) {
+                range.getData().completeExceptionally(e);
+            }
+        }
+    }
+}